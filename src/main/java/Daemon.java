@@ -0,0 +1,215 @@
+import common.LatencyStats;
+import common.LogstashLogger;
+import common.Properties;
+import common.RedisPool;
+import furnace.FurnaceMonitor;
+import furnace.FurnaceSlave;
+import furnace.FurnaceStateToInflux;
+import i2c.Master;
+import iot.DallasTemperature;
+import org.eclipse.jetty.server.Server;
+import redis.clients.jedis.Jedis;
+import solar.ControllerListener;
+import solar.SolarSlave;
+import solar.SolarStateToInflux;
+import usb.SerialHub;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the services and loggers of this device in one resident JVM, instead of cron starting a JVM (and parsing
+ * /proc/cpuinfo) for every run.
+ *
+ * Every task gets a scheduler thread of its own, so a slow monitor request does not delay the solar control. Periodic
+ * tasks run at the period from Properties. Long running services (SerialHub, I2CMaster, the solar ControllerListener)
+ * are started again a minute after they return or fail. A failure is logged and counted per task and never stops the
+ * other tasks. Cron starts the daemon every minute, the heartbeat key makes a second daemon exit right away. The
+ * configuration file is watched, a task picks up a change on its next run (the periods and the set of tasks are fixed
+ * at the start).
+ */
+public class Daemon {
+
+    /** Services and loggers that run in the daemon when "daemon" is one of the services */
+    private final static Set<String> TASKS = new HashSet<>(Arrays.asList("SolarControl", "FurnaceMonitor"
+            , "DallasTemperature", "FurnaceStateToInflux", "SolarStateToInflux", "SerialHub", "I2CMaster", "http"));
+
+    private final static String HEARTBEAT_KEY = "daemon.heartbeat";
+    private final static int HEARTBEAT_TTL = 90;
+    private final static int HEARTBEAT_PERIOD = 30;
+    private final static int RESTART_DELAY = 60;
+    private final static long REPORT_INTERVAL_MS = 10*60*1000;
+
+    private final Properties prop;
+    private final List<Task> tasks = new ArrayList<>();
+    private final List<ScheduledExecutorService> executors = new ArrayList<>();
+    private final long startTime = System.currentTimeMillis();
+    private long lastReport = startTime;
+    private volatile SerialHub hub;
+    private Server httpServer;
+
+    public Daemon(Properties prop) {
+        this.prop = prop;
+    }
+
+    /** True when the task is run by the daemon, the single run from cron should then be skipped */
+    public static boolean runs(String task) {
+        return TASKS.contains(task) && Main.hasService("daemon");
+    }
+
+    public void run() {
+        if (!claimHeartbeat()) {
+            return;
+        }
+        Properties.watch();
+        if (Main.hasService("SolarControl")) {
+            // Runs on every solar frame, the period is the fallback when the frames stop
+            resident("SolarControl", () -> new ControllerListener(prop.solarControlPeriod).run());
+        }
+        if (Main.hasService("FurnaceMonitor")) {
+            periodic("FurnaceMonitor", prop.furnaceMonitorPeriod, () -> new FurnaceMonitor().run());
+        }
+        if (Main.hasService("DallasTemperature")) {
+            periodic("DallasTemperature", prop.dallasTemperaturePeriod, () -> new DallasTemperature().run());
+        }
+        if (Main.hasLogger("FurnaceStateToInflux")) {
+            periodic("FurnaceStateToInflux", prop.influxLoggerPeriod, () -> new FurnaceStateToInflux().run());
+        }
+        if (Main.hasLogger("SolarStateToInflux")) {
+            periodic("SolarStateToInflux", prop.influxLoggerPeriod, () -> new SolarStateToInflux().run());
+        }
+        if (Main.hasService("SerialHub")) {
+            resident("SerialHub", () -> {
+                hub = new SerialHub(new FurnaceSlave(), new SolarSlave());
+                hub.run();
+            });
+        }
+        if (Main.hasService("I2CMaster")) {
+            resident("I2CMaster", () -> new Master().run());
+        }
+        if (Main.hasService("http")) {
+            startHttp();
+        }
+
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+        heartbeat.scheduleAtFixedRate(new Task("heartbeat", this::heartbeat), HEARTBEAT_PERIOD, HEARTBEAT_PERIOD
+                , TimeUnit.SECONDS);
+        executors.add(heartbeat);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+
+        LogstashLogger.INSTANCE.info("Daemon started " + tasks.size() + " tasks, "
+                + (System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime())
+                + "ms after the JVM start");
+    }
+
+    private void periodic(String name, int periodSeconds, Job job) {
+        Task task = new Task(name, job);
+        tasks.add(task);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        // Spread the first runs a bit, like the sleeps in the crontab did
+        executor.scheduleAtFixedRate(task, 5L*tasks.size(), periodSeconds, TimeUnit.SECONDS);
+        executors.add(executor);
+    }
+
+    private void resident(String name, Job job) {
+        Task task = new Task(name, job);
+        tasks.add(task);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        executor.scheduleWithFixedDelay(task, 0, RESTART_DELAY, TimeUnit.SECONDS);
+        executors.add(executor);
+    }
+
+    private void startHttp() {
+        LogstashLogger.INSTANCE.info("Starting http at port " + prop.httpPort);
+        httpServer = Main.createServer(prop.httpPort);
+        try {
+            httpServer.start();
+        } catch (Exception e) {
+            LogstashLogger.INSTANCE.error("Failed to start http listener.", e);
+        }
+    }
+
+    private boolean claimHeartbeat() {
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            if (jedis.exists(HEARTBEAT_KEY)) {
+                return false;
+            }
+            jedis.setex(HEARTBEAT_KEY, HEARTBEAT_TTL, "0");
+            return true;
+        }
+    }
+
+    private void heartbeat() {
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            jedis.setex(HEARTBEAT_KEY, HEARTBEAT_TTL
+                    , String.valueOf((System.currentTimeMillis() - startTime)/1000));
+        }
+        if (System.currentTimeMillis() - lastReport > REPORT_INTERVAL_MS) {
+            for (Task task : tasks) {
+                LogstashLogger.INSTANCE.info(task.runTime + ", failures=" + task.failures.getAndSet(0));
+                task.runTime.reset();
+            }
+            LogstashLogger.INSTANCE.info(RedisPool.INSTANCE.metrics());
+            RedisPool.INSTANCE.resetMetrics();
+            lastReport = System.currentTimeMillis();
+        }
+    }
+
+    private void shutdown() {
+        for (ScheduledExecutorService executor : executors) {
+            executor.shutdownNow();
+        }
+        if (hub != null) {
+            hub.close();
+        }
+        if (httpServer != null) {
+            try {
+                httpServer.stop();
+            } catch (Exception e) {
+                LogstashLogger.INSTANCE.warn("Failed to stop http listener.", e);
+            }
+        }
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            jedis.del(HEARTBEAT_KEY);
+        }
+    }
+
+    private interface Job {
+        void run() throws Exception;
+    }
+
+    /** A job with its own run time and failure figures, an exception never cancels the next runs */
+    private static class Task implements Runnable {
+        final String name;
+        final Job job;
+        final LatencyStats runTime;
+        final AtomicLong failures = new AtomicLong();
+
+        Task(String name, Job job) {
+            this.name = name;
+            this.job = job;
+            runTime = new LatencyStats("daemon " + name);
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                job.run();
+            } catch (Throwable t) {
+                failures.incrementAndGet();
+                LogstashLogger.INSTANCE.error(name + " has finished with unhandled exception.", t);
+            } finally {
+                runTime.since(start);
+            }
+        }
+    }
+}
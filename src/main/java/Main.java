@@ -1,21 +1,44 @@
 import furnace.FurnaceStateToInflux;
 import usb.ListPorts;
+import usb.SerialHub;
 import handlers.RedisHandler;
+import handlers.StreamHandler;
+import i2c.DeviceRegistry;
 import i2c.Master;
+import i2c.SimulatedBus;
 import iot.DallasTemperature;
 import furnace.FurnaceSlave;
 import furnace.FurnaceMonitor;
+import furnace.I2CFurnaceMaster;
+import org.apache.commons.io.IOUtils;
 import org.eclipse.jetty.server.ConnectionFactory;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 import org.eclipse.jetty.server.handler.ErrorHandler;
 import common.Properties;
 import common.LogstashLogger;
+import net.e175.klaus.solarpositioning.AzimuthZenithAngle;
 import solar.Controller;
 import solar.SolarSlave;
 import solar.SolarStateToInflux;
+import solar.Simulator;
+import solar.Sun;
+import solar.Sweep;
+import valve.I2CValveMaster;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
 
 /**
  * Created by Jaap on 25-7-2016.
@@ -23,7 +46,16 @@ import solar.SolarStateToInflux;
 public class Main {
     public static void main(String[] args) {
         try {
+            if (Daemon.runs(args[0])) {
+                // The resident daemon runs this one
+                return;
+            }
             switch (args[0]) {
+                case "daemon":
+                    if (hasService(args[0])) {
+                        new Daemon(Properties.get()).run();
+                    }
+                    break;
                 case "FurnaceStateToInflux":
                     if (hasLogger(args[0])) {
                         new FurnaceStateToInflux().run();
@@ -36,7 +68,8 @@ public class Main {
                     break;
                 case "FurnaceSlave":
                     if (hasService(args[0])) {
-                        new FurnaceSlave().run();
+                        new SerialHub(new FurnaceSlave()).run();
+                        System.exit(0);
                     }
                     break;
                 case "ListPorts":
@@ -44,7 +77,14 @@ public class Main {
                     break;
                 case "SolarSlave":
                     if (hasService(args[0])) {
-                        new SolarSlave().run();
+                        new SerialHub(new SolarSlave()).run();
+                        System.exit(0);
+                    }
+                    break;
+                case "SerialHub":
+                    if (hasService(args[0])) {
+                        new SerialHub(new FurnaceSlave(), new SolarSlave()).run();
+                        System.exit(0);
                     }
                     break;
                 case "FurnaceMonitor":
@@ -64,7 +104,7 @@ public class Main {
                     break;
                 case "http":
                     if (hasService(args[0])) {
-                        startHttp(new Properties().httpPort);
+                        startHttp(Properties.get().httpPort);
                     }
                     break;
                 case "SolarControl":
@@ -75,6 +115,19 @@ public class Main {
                 case "prop":
                     System.out.println(prop(args[1]));
                     break;
+                case "sun":
+                    checkSun();
+                    break;
+                case "simulate":
+                    simulate(args[1]);
+                    break;
+                case "sweep":
+                    sweep(args[1], args.length > 2 ? Integer.parseInt(args[2]) : 20);
+                    break;
+                case "i2cload":
+                    i2cLoad(arg(args, 1, 4), arg(args, 2, 32), arg(args, 3, 60), arg(args, 4, 200)
+                            , args.length > 5 ? Double.parseDouble(args[5]) : 0.01);
+                    break;
  /*               case "i2c":
                     try {
                         int[] ids = I2CFactory.getBusIds();
@@ -93,7 +146,7 @@ public class Main {
     }
 
     private static String prop(String name) {
-        Properties prop = new Properties();
+        Properties prop = Properties.get();
         switch(name) {
             case "deviceName":
                 return prop.deviceName;
@@ -107,16 +160,138 @@ public class Main {
                 return prop.services;
             case "loggers":
                 return prop.loggers;
+            case "configFile":
+                return Properties.configFile().getPath();
 
         }
         return "unknown";
     }
 
+    /** Compares the interpolated sun positions with SPA for a year of odd minutes, and times both */
+    private static void checkSun() {
+        Sun sun = new Sun();
+        long start = System.currentTimeMillis();
+        long step = 7*60*1000 + 13*1000;
+        double maxAzimuthError = 0.0, maxZenithError = 0.0;
+        int samples = 0, mismatches = 0;
+        long tableNanos = 0, spaNanos = 0;
+        for (long time = start; time < start + 365L*24*60*60*1000; time += step) {
+            sun.position(time); // builds the table of the day outside the timing
+            long t0 = System.nanoTime();
+            AzimuthZenithAngle table = sun.position(time);
+            long t1 = System.nanoTime();
+            AzimuthZenithAngle spa = sun.spaPosition(time);
+            long t2 = System.nanoTime();
+            tableNanos += t1 - t0;
+            spaNanos += t2 - t1;
+            // Below the horizon SPA switches its refraction correction off, which does not interpolate
+            if (spa.getZenithAngle() < 90.0) {
+                double azimuthError = Math.abs(table.getAzimuth() - spa.getAzimuth());
+                maxAzimuthError = Math.max(maxAzimuthError, Math.min(azimuthError, 360.0 - azimuthError));
+                maxZenithError = Math.max(maxZenithError, Math.abs(table.getZenithAngle() - spa.getZenithAngle()));
+            }
+            if (Sun.shining(time, table) != Sun.shining(time, spa)) {
+                mismatches++;
+            }
+            samples++;
+        }
+        System.out.println("Samples: " + samples + ", shining mismatches: " + mismatches);
+        System.out.println("Max error above the horizon, azimuth: " + maxAzimuthError + ", zenith angle: " + maxZenithError);
+        System.out.println("Mean lookup table: " + tableNanos/samples + "ns, SPA: " + spaNanos/samples + "ns");
+    }
+
+    private static void simulate(String historyFile) throws IOException {
+        List<Simulator.Sample> history;
+        try (Reader reader = new FileReader(historyFile)) {
+            history = Simulator.read(reader);
+        }
+        long start = System.nanoTime();
+        Simulator.Result result = new Simulator().run(history);
+        long elapsedMillis = Math.max(1, (System.nanoTime() - start)/1000000);
+        for (String line : result.timeline) {
+            System.out.println(line);
+        }
+        System.out.println(result);
+        System.out.println("Replayed " + history.size() + " samples in " + elapsedMillis + "ms, "
+                + result.simulatedMillis/elapsedMillis + " times real time");
+    }
+
+    private static void sweep(String historyFile, int top) throws IOException {
+        List<Simulator.Sample> history;
+        try (Reader reader = new FileReader(historyFile)) {
+            history = Simulator.read(reader);
+        }
+        long start = System.currentTimeMillis();
+        List<Sweep.Score> scores = new Sweep().run(history);
+        System.out.println(Sweep.header());
+        for (Sweep.Score score : scores.subList(0, Math.min(top, scores.size()))) {
+            System.out.println(score);
+        }
+        System.out.println("Default: " + new Simulator().run(history));
+        System.out.println("Replayed " + scores.size() + " settings on " + history.size() + " samples in "
+                + (System.currentTimeMillis() - start) + "ms, " + Runtime.getRuntime().availableProcessors()
+                + " processors");
+    }
+
+    private static int arg(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+    /**
+     * Runs the i2c Master against simulated furnaces and valve groups, every other one speaking the binary frames,
+     * with a local stand-in for the monitor. The furnaces use Redis like on a Pi.
+     */
+    private static void i2cLoad(int furnaces, int valveGroups, int seconds, int latencyMicros, double errorRate)
+            throws Exception {
+        Server monitor = new Server(0);
+        monitor.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request
+                    , HttpServletResponse response) throws IOException {
+                // A directive request is "[group]:", a status post "[group]:[status]"
+                String body = IOUtils.toString(request.getReader());
+                response.setContentType("text/plain");
+                response.getWriter().print(body.endsWith(":") ? "1:0:1" : "ok");
+                baseRequest.setHandled(true);
+            }
+        });
+        monitor.start();
+        int monitorPort = ((ServerConnector)monitor.getConnectors()[0]).getLocalPort();
+
+        try {
+            SimulatedBus bus = new SimulatedBus(1).latency(latencyMicros).errorRate(errorRate);
+            int address = DeviceRegistry.FIRST_ADDRESS;
+            for (int i = 0; i < furnaces && address <= DeviceRegistry.LAST_ADDRESS; i++) {
+                bus.add(address, SimulatedBus.furnace("furnace" + i, address % 2 == 1));
+                address++;
+            }
+            for (int i = 0; i < valveGroups && address <= DeviceRegistry.LAST_ADDRESS; i++) {
+                bus.add(address, SimulatedBus.valveGroup(Integer.toString(i), address % 2 == 1));
+                address++;
+            }
+            Master master = new Master(bus, new I2CValveMaster("localhost", monitorPort)
+                    , new I2CFurnaceMaster(true));
+            master.setPollPeriods(1000, 2000);
+            long start = System.currentTimeMillis();
+            master.run(start + seconds*1000L);
+            for (String line : master.report()) {
+                System.out.println(line);
+            }
+            System.out.println("Simulated " + (address - DeviceRegistry.FIRST_ADDRESS) + " slaves for "
+                    + (System.currentTimeMillis() - start) + "ms, " + bus.transfers() + " transfers, "
+                    + bus.errors() + " failed");
+        } finally {
+            monitor.stop();
+        }
+    }
+
     static Server createServer(int port) {
         ContextHandler redisContext = new ContextHandler("/redis");
         redisContext.setHandler(new RedisHandler());
+        ContextHandler streamContext = new ContextHandler("/stream");
+        streamContext.setHandler(new StreamHandler());
         Server httpServer = new Server(port);
-        httpServer.setHandler(redisContext);
+        httpServer.setHandler(new ContextHandlerCollection(redisContext, streamContext));
         removeHeaders(httpServer);
         ErrorHandler errorHandler = new ErrorHandler();
         errorHandler.setShowStacks(true);
@@ -138,12 +313,12 @@ public class Main {
     }
 
     public static boolean hasService(String service) {
-        final Properties prop = new Properties();
-            return prop.services != null && prop.services.contains(service);
+        final Properties prop = Properties.get();
+        return prop.services != null && prop.services.contains(service);
     }
 
     public static boolean hasLogger(String logger) {
-        final Properties prop = new Properties();
+        final Properties prop = Properties.get();
         return prop.loggers != null && prop.loggers.contains(logger);
     }
 
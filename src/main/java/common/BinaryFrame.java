@@ -0,0 +1,234 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary frame as exchanged with micro controllers that support it, the successor of the colon separated text lines
+ * (see Frame). A controller advertises the versions it supports in its hello, with a "B[version]" field at the end,
+ * for example "H:boiler120:B1". Controllers that do not are sent text, as before.
+ *
+ * Layout of version 1, all numbers big endian:
+ * <pre>
+ *   0       0x80 | version, never a byte of a text line
+ *   1       type, one of the TYPE_ constants
+ *   2       sequence, 0-255 wrapping
+ *   3       payload length n
+ *   4..n+3  payload
+ *   n+4     CRC-8 (polynomial 0x07) of bytes 0..n+3
+ * </pre>
+ * Temperatures are signed 16 bit hundredths of a degree, MISSING when the sensor failed. Switches are bits of a flags
+ * byte. On i2c the slave echoes the sequence of the request it answers. On a serial line the frame is escaped, so it
+ * contains no line ends, and followed by CRLF like a text line; the frames to the controller are sent as is.
+ *
+ * Reading a frame does not allocate, like Frame.
+ *
+ * So far this is the Pi side only: the sketches in src/main/arduino (FurnaceController, I2CFurnaceController,
+ * I2CValveBridge) still speak text and never advertise a version, so only SimulatedBus exercises the binary path.
+ */
+public class BinaryFrame {
+    public final static int VERSION = 1;
+    public final static int HEADER_SIZE = 4;
+    /** Largest payload that fits in a 32 byte i2c response */
+    public final static int MAX_PAYLOAD = 27;
+    public final static int MISSING = Short.MIN_VALUE;
+
+    /** Furnace to pi: flags (bit 0 boiler on), boiler temperature, auxiliary temperature, log code */
+    public final static int TYPE_FURNACE_STATE = 1;
+    /** Solar to pi: Ttop, Tmiddle, Tbottom, TflowIn, TflowOut, flags (bit 0 valve I, bit 1 valve II, bit 2 pump) */
+    public final static int TYPE_SOLAR_STATE = 2;
+    /** Valve group to pi: the status text, passed on to the monitor as is */
+    public final static int TYPE_VALVE_STATUS = 3;
+    /** Pi to furnace: flags (bit 0 furnace on, bit 1 pump on) */
+    public final static int TYPE_FURNACE_REQUEST = 4;
+    /** Pi to solar: flags (bit 0 valve I, bit 1 valve II, bit 2 pump) */
+    public final static int TYPE_SOLAR_REQUEST = 5;
+    /** Pi to valve group: the directive text of the monitor */
+    public final static int TYPE_VALVE_DIRECTIVE = 6;
+
+    private final static byte ESCAPE = 0x1B;
+
+    private byte[] data;
+    private int offset;
+    private int type;
+    private int sequence;
+    private int payloadLength;
+    private String error;
+
+    /**
+     * True when the byte starts a binary frame of this VERSION rather than a text line. Only the exact version byte
+     * counts, so 0xFF padding or line noise with the high bit set is not taken for a frame.
+     */
+    public static boolean isBinary(byte first) {
+        return first == (byte)(0x80 | VERSION);
+    }
+
+    /** Highest binary version both sides support according to given hello, 0 for text only */
+    public static int advertised(String hello) {
+        int field = hello.lastIndexOf(':');
+        if (field < 0 || field + 2 > hello.length() || hello.charAt(field + 1) != 'B') {
+            return 0;
+        }
+        try {
+            return Math.min(Integer.parseInt(hello.substring(field + 2).trim()), VERSION);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Checks and indexes a frame, the bytes are read in place so keep them until the fields are read.
+     * @return false when the frame is invalid, see error()
+     */
+    public boolean read(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        payloadLength = 0;
+        if (length < HEADER_SIZE + 1) {
+            return invalid("frame of " + length + " bytes is too short");
+        }
+        if ((data[offset] & 0x7F) != VERSION) {
+            return invalid("unsupported version " + (data[offset] & 0x7F));
+        }
+        int size = data[offset + 3] & 0xFF;
+        if (size > length - HEADER_SIZE - 1) {
+            return invalid("payload of " + size + " bytes in a frame of " + length + " bytes");
+        }
+        if (crc8(data, offset, HEADER_SIZE + size) != data[offset + HEADER_SIZE + size]) {
+            return invalid("CRC mismatch");
+        }
+        type = data[offset + 1] & 0xFF;
+        sequence = data[offset + 2] & 0xFF;
+        payloadLength = size;
+        error = null;
+        return true;
+    }
+
+    /** Reads a frame received as a serial line, see unescape(). The line is unescaped in place. */
+    public boolean read(Frame line) {
+        return read(line.buffer(), 0, unescape(line.buffer(), 0, line.length()));
+    }
+
+    /** Number of frames lost between two sequence numbers, previous is -1 before the first frame */
+    public static int missed(int previous, int sequence) {
+        return previous < 0 || sequence == previous ? 0 : (sequence - previous - 1) & 0xFF;
+    }
+
+    private boolean invalid(String error) {
+        this.error = error;
+        return false;
+    }
+
+    /** Why the last read() failed */
+    public String error() {
+        return error;
+    }
+
+    public int type() {
+        return type;
+    }
+
+    public int sequence() {
+        return sequence;
+    }
+
+    public int payloadLength() {
+        return payloadLength;
+    }
+
+    public int uint8(int index) {
+        return index < payloadLength ? data[offset + HEADER_SIZE + index] & 0xFF : 0;
+    }
+
+    public boolean flag(int index, int bit) {
+        return (uint8(index) & (1 << bit)) != 0;
+    }
+
+    public int int16(int index) {
+        if (index + 1 >= payloadLength) {
+            return MISSING;
+        }
+        return (short)((data[offset + HEADER_SIZE + index] << 8) | (data[offset + HEADER_SIZE + index + 1] & 0xFF));
+    }
+
+    /** Temperature at given payload index, NaN when it is missing */
+    public double temperature(int index) {
+        int value = int16(index);
+        return value == MISSING ? Double.NaN : value/100.0;
+    }
+
+    public String payloadString(int from) {
+        if (from >= payloadLength) {
+            return "";
+        }
+        return new String(data, offset + HEADER_SIZE + from, payloadLength - from, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder frame = new StringBuilder("B" + VERSION + " type=" + type + " seq=" + sequence + " [");
+        for (int i = 0; i < payloadLength; i++) {
+            frame.append(i == 0 ? "" : " ").append(String.format("%02x", uint8(i)));
+        }
+        return frame.append(']').toString();
+    }
+
+    /**
+     * Writes a frame with given payload to target.
+     * @return the length of the frame
+     */
+    public static int write(byte[] target, int type, int sequence, byte[] payload, int payloadLength) {
+        target[0] = (byte)(0x80 | VERSION);
+        target[1] = (byte)type;
+        target[2] = (byte)sequence;
+        target[3] = (byte)payloadLength;
+        System.arraycopy(payload, 0, target, HEADER_SIZE, payloadLength);
+        target[HEADER_SIZE + payloadLength] = crc8(target, 0, HEADER_SIZE + payloadLength);
+        return HEADER_SIZE + payloadLength + 1;
+    }
+
+    /** Writes a frame with a flags byte as payload, the requests to the furnace and solar controllers */
+    public static int writeFlags(byte[] target, int type, int sequence, boolean... flags) {
+        int bits = 0;
+        for (int i = 0; i < flags.length; i++) {
+            if (flags[i]) {
+                bits |= 1 << i;
+            }
+        }
+        target[0] = (byte)(0x80 | VERSION);
+        target[1] = (byte)type;
+        target[2] = (byte)sequence;
+        target[3] = 1;
+        target[4] = (byte)bits;
+        target[5] = crc8(target, 0, 5);
+        return 6;
+    }
+
+    /**
+     * Undoes the escaping of a frame received as a serial line, in place. The controller sends LF, CR and ESCAPE as
+     * ESCAPE followed by the byte ^ 0x20.
+     * @return the length of the frame
+     */
+    public static int unescape(byte[] data, int offset, int length) {
+        int out = offset;
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] == ESCAPE && i + 1 < offset + length) {
+                data[out++] = (byte)(data[++i] ^ 0x20);
+            } else {
+                data[out++] = data[i];
+            }
+        }
+        return out - offset;
+    }
+
+    /** CRC-8 with polynomial 0x07 and initial value 0 */
+    public static byte crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+        }
+        return (byte)crc;
+    }
+}
@@ -11,7 +11,7 @@ public class FluxLogger {
     private final int port;
 
     public FluxLogger() throws UnknownHostException {
-        final Properties properties = new Properties();
+        final Properties properties = Properties.get();
         port = properties.influxPort;
         try {
             host = InetAddress.getByName(properties.influxIp);
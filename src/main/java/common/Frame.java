@@ -0,0 +1,201 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable view of a single colon separated line as sent by the micro controllers, for example
+ * "20.06:17.87:16.31:14.00:15.69:T:T:T". The fields are read as primitives straight from the bytes, so reading a
+ * frame does not create any Strings. Only the methods that return a String (field(), substring(), toString()) allocate.
+ */
+public class Frame {
+    private final static int MAX_FIELDS = 16;
+
+    private final byte[] data;
+    private int length;
+
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private int fieldCount;
+
+    public Frame(int capacity) {
+        data = new byte[capacity];
+    }
+
+    /** The backing buffer, fill it and call setLength() to make the bytes readable */
+    public byte[] buffer() {
+        return data;
+    }
+
+    public int capacity() {
+        return data.length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    public void setLength(int length) {
+        this.length = Math.min(length, data.length);
+        fieldCount = 0;
+        if (this.length == 0) {
+            return;
+        }
+        int start = 0;
+        for (int i = 0; i <= this.length; i++) {
+            if (i == this.length || data[i] == ':') {
+                if (fieldCount < MAX_FIELDS) {
+                    fieldStart[fieldCount] = start;
+                    fieldEnd[fieldCount] = i;
+                }
+                fieldCount++;
+                start = i + 1;
+            }
+        }
+    }
+
+    /** Number of colon separated fields, fields beyond the sixteenth are counted but cannot be read */
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    public boolean startsWith(String prefix) {
+        if (prefix.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean fieldEquals(int index, String value) {
+        if (index >= Math.min(fieldCount, MAX_FIELDS)) {
+            return false;
+        }
+        int start = trimStart(index), end = trimEnd(index);
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (data[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** True when the field reads "T", the way the controllers send a switched on valve or pump */
+    public boolean flagField(int index) {
+        return fieldEquals(index, "T");
+    }
+
+    /**
+     * Parses a plain decimal number such as "-12.50". Returns NaN when the field is not such a number
+     * (this includes the "nan" an Arduino prints for a failed sensor).
+     */
+    public double doubleField(int index) {
+        if (index >= Math.min(fieldCount, MAX_FIELDS)) {
+            return Double.NaN;
+        }
+        int i = trimStart(index), end = trimEnd(index);
+        boolean negative = false;
+        if (i < end && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0, decimals = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            byte b = data[i];
+            if (b >= '0' && b <= '9') {
+                if (digits == 18) {
+                    return Double.NaN;
+                }
+                mantissa = mantissa*10 + (b - '0');
+                digits++;
+                if (point) {
+                    decimals++;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        double value = decimals == 0 ? mantissa : mantissa / POWERS_OF_TEN[decimals];
+        return negative ? -value : value;
+    }
+
+    private final static double[] POWERS_OF_TEN = new double[19];
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1]*10.0;
+        }
+    }
+
+    public int intField(int index) {
+        double value = doubleField(index);
+        return Double.isNaN(value) ? -1 : (int)value;
+    }
+
+    public String field(int index) {
+        if (index >= Math.min(fieldCount, MAX_FIELDS)) {
+            return "";
+        }
+        return new String(data, fieldStart[index], fieldEnd[index] - fieldStart[index], StandardCharsets.US_ASCII);
+    }
+
+    /** Position of the first c, -1 when the frame does not contain it */
+    public int indexOf(char c) {
+        for (int i = 0; i < length; i++) {
+            if (data[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String substring(int from) {
+        return substring(from, length);
+    }
+
+    public String substring(int from, int to) {
+        to = Math.min(to, length);
+        if (from >= to) {
+            return "";
+        }
+        return new String(data, from, to - from, StandardCharsets.US_ASCII);
+    }
+
+    private int trimStart(int index) {
+        int i = fieldStart[index];
+        while (i < fieldEnd[index] && data[i] <= ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private int trimEnd(int index) {
+        int i = fieldEnd[index];
+        while (i > fieldStart[index] && data[i - 1] <= ' ') {
+            i--;
+        }
+        return i;
+    }
+
+    @Override
+    public String toString() {
+        return new String(data, 0, length, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,54 @@
+package common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running figures (count, mean and max) of a timed operation. Meant to be logged and reset now and then by the
+ * process that owns it.
+ */
+public class LatencyStats {
+    private final String name;
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    public LatencyStats(String name) {
+        this.name = name;
+    }
+
+    public synchronized void record(long nanos) {
+        count++;
+        totalNanos += nanos;
+        if (nanos > maxNanos) {
+            maxNanos = nanos;
+        }
+    }
+
+    /** Records the time passed since given System.nanoTime() stamp */
+    public void since(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public synchronized long count() {
+        return count;
+    }
+
+    public synchronized double meanMillis() {
+        return count == 0 ? 0.0 : (double)totalNanos / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public synchronized double maxMillis() {
+        return (double)maxNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public synchronized void reset() {
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s n=%d, mean=%.3fms, max=%.3fms", name, count, meanMillis(), maxMillis());
+    }
+}
@@ -16,7 +16,7 @@ public class LogstashLogger {
     final int port;
 
     private LogstashLogger() {
-        final Properties prop = new Properties();
+        final Properties prop = Properties.get();
         port = prop.logstashPort;
         deviceName = prop.deviceName;
 
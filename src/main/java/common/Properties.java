@@ -1,89 +1,238 @@
 package common;
 
 import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Configuration of this device, an immutable snapshot shared by the whole process. Get it with Properties.get().
+ *
+ * The device is identified by its cpu serial. Its settings are taken from the configuration file (CONFIG_FILE in the
+ * home directory, or the file in system property iot.config) where "[cpu serial].[name]" overrides "[name]". Settings
+ * that are not in the file come from the built-in device table and the defaults below, so a new site can be added
+ * without recompiling. With watch() a changed file is loaded into a new snapshot, holders of the old snapshot keep it.
+ */
 public class Properties {
 
-    public String cpuId;
-    public String deviceName;
+    public final static String CONFIG_FILE = "iot-furnace.properties";
+    final static String CPU_INFO = "/proc/cpuinfo";
 
-    public final int httpPort = 8080;
+    private static volatile Properties current;
 
-    public String influxIp = "192.168.178.100";
-    public int influxPort = 8087;
+    public final String cpuId;
+    public final String deviceName;
 
-    public String monitorIp = "192.168.178.18";
-    public int monitorPort = 8000;
+    public final int httpPort;
 
-    public String logstashIp = "192.168.178.101";
-    public int logstashPort = 9000;
+    public final String influxIp;
+    public final int influxPort;
 
-    public String boilerName;
-    public String boilerSensor;
-    public boolean hasAuxilaryTemperature = true;
+    public final String monitorIp;
+    public final int monitorPort;
 
-    public final int elevation = 100;
-    public final double latitude = 50.803;
-    public final double longitude = 5.955;
+    public final String logstashIp;
+    public final int logstashPort;
 
-    public String services;
-    public String loggers;
+    public final String boilerName;
+    public final String boilerSensor;
+    public final boolean hasAuxilaryTemperature;
 
-    final String CPU_INFO = "/proc/cpuinfo";
+    public final int elevation;
+    public final double latitude;
+    public final double longitude;
 
-    public Properties()  {
+    /** Keep writing and reading the "[device].[sensor]" string keys next to the sensor hashes, see SensorHash */
+    public final boolean legacySensorKeys;
+
+    public final String services;
+    public final String loggers;
+
+    /**
+     * Seconds between the runs of a service or logger when they run in the daemon, see Daemon. The solar control runs
+     * on every frame, its period is the fallback when the frames stop (ControllerListener).
+     */
+    public final int solarControlPeriod;
+    public final int furnaceMonitorPeriod;
+    public final int dallasTemperaturePeriod;
+    public final int influxLoggerPeriod;
+
+    /** Seconds between the requests to a furnace and to a valve group slave on the i2c bus, see i2c.Master */
+    public final int furnacePollPeriod;
+    public final int valvePollPeriod;
+
+    private Properties(String cpuId, java.util.Properties file) {
+        this.cpuId = cpuId;
+        java.util.Properties settings = builtIn(cpuId);
+        for (String name : file.stringPropertyNames()) {
+            if (!name.contains(".")) {
+                settings.setProperty(name, file.getProperty(name));
+            }
+        }
+        if (cpuId != null) {
+            for (String name : file.stringPropertyNames()) {
+                if (name.startsWith(cpuId + ".")) {
+                    settings.setProperty(name.substring(cpuId.length() + 1), file.getProperty(name));
+                }
+            }
+        }
+
+        deviceName = settings.getProperty("deviceName");
+        httpPort = Integer.parseInt(settings.getProperty("httpPort", "8080"));
+        influxIp = settings.getProperty("influxIp", "192.168.178.100");
+        influxPort = Integer.parseInt(settings.getProperty("influxPort", "8087"));
+        monitorIp = settings.getProperty("monitorIp", "192.168.178.18");
+        monitorPort = Integer.parseInt(settings.getProperty("monitorPort", "8000"));
+        logstashIp = settings.getProperty("logstashIp", "192.168.178.101");
+        logstashPort = Integer.parseInt(settings.getProperty("logstashPort", "9000"));
+        boilerName = settings.getProperty("boilerName");
+        boilerSensor = settings.getProperty("boilerSensor");
+        hasAuxilaryTemperature = Boolean.parseBoolean(settings.getProperty("hasAuxilaryTemperature", "true"));
+        elevation = Integer.parseInt(settings.getProperty("elevation", "100"));
+        latitude = Double.parseDouble(settings.getProperty("latitude", "50.803"));
+        longitude = Double.parseDouble(settings.getProperty("longitude", "5.955"));
+        legacySensorKeys = Boolean.parseBoolean(settings.getProperty("legacySensorKeys", "true"));
+        services = settings.getProperty("services");
+        loggers = settings.getProperty("loggers");
+        solarControlPeriod = Integer.parseInt(settings.getProperty("solarControlPeriod", "30"));
+        furnaceMonitorPeriod = Integer.parseInt(settings.getProperty("furnaceMonitorPeriod", "60"));
+        dallasTemperaturePeriod = Integer.parseInt(settings.getProperty("dallasTemperaturePeriod", "30"));
+        influxLoggerPeriod = Integer.parseInt(settings.getProperty("influxLoggerPeriod", "30"));
+        furnacePollPeriod = Integer.parseInt(settings.getProperty("furnacePollPeriod", "10"));
+        valvePollPeriod = Integer.parseInt(settings.getProperty("valvePollPeriod", "30"));
+    }
+
+    /** The current configuration, it is loaded on first use */
+    public static Properties get() {
+        Properties properties = current;
+        if (properties == null) {
+            synchronized (Properties.class) {
+                if (current == null) {
+                    current = load(readCpuId());
+                }
+                properties = current;
+            }
+        }
+        return properties;
+    }
+
+    public static File configFile() {
+        return new File(System.getProperty("iot.config"
+                , System.getProperty("user.home") + File.separator + CONFIG_FILE));
+    }
+
+    /**
+     * Reloads the configuration whenever the configuration file changes, from a daemon thread. Only for resident
+     * processes, a process started by cron reads the file once.
+     */
+    public static void watch() {
+        Thread watcher = new Thread(Properties::watchConfigFile, "properties-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private static void watchConfigFile() {
+        Path file = configFile().toPath().toAbsolutePath();
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE
+                    , StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= file.getFileName().equals(event.context());
+                }
+                key.reset();
+                if (changed) {
+                    // Editors write in steps, give them a moment
+                    TimeUnit.SECONDS.sleep(1);
+                    current = load(get().cpuId);
+                    LogstashLogger.INSTANCE.info("Reloaded the configuration from " + file);
+                }
+            }
+        } catch (IOException e) {
+            LogstashLogger.INSTANCE.error("Cannot watch configuration file " + file, e);
+        } catch (InterruptedException e) {
+            // stop watching
+        }
+    }
+
+    private static Properties load(String cpuId) {
+        java.util.Properties file = new java.util.Properties();
+        File configFile = configFile();
+        if (configFile.exists()) {
+            try (Reader reader = new FileReader(configFile)) {
+                file.load(reader);
+            } catch (IOException e) {
+                // Not to the LogstashLogger, it is configured from here
+                System.out.println("Could not read configuration " + configFile + ", " + e.getMessage());
+            }
+        }
+        try {
+            return new Properties(cpuId, file);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number in configuration " + configFile + ", " + e.getMessage()
+                    + ", using the built-in configuration");
+            return new Properties(cpuId, new java.util.Properties());
+        }
+    }
+
+    private static String readCpuId() {
         try (BufferedReader br = new BufferedReader(new FileReader(CPU_INFO))) {
             String line;
             while ((line = br.readLine()) != null) {
                 if (line.startsWith("Serial")) {
-                    cpuId = line.replaceAll("Serial\\s+:", "").trim();
-                    setProperties(cpuId);
-                    break;
+                    return line.replaceAll("Serial\\s+:", "").trim();
                 }
             }
         } catch (IOException e) {
-            LogstashLogger.INSTANCE.error("Could not retrieve cpu serial number from " + CPU_INFO, e);
+            System.out.println("Could not retrieve cpu serial number from " + CPU_INFO + ", " + e.getMessage());
         }
+        return null;
     }
 
-    public void setProperties(String cpuId) {
-        this.cpuId = cpuId;
+    /** Settings of the devices known at compile time, the configuration file overrides these */
+    private static java.util.Properties builtIn(String cpuId) {
+        java.util.Properties settings = new java.util.Properties();
+        if (cpuId == null) {
+            return settings;
+        }
         switch (cpuId) {
             case "000000006f0cfbce":
-                deviceName = "koetshuis_kelder";
-                services = "I2CMaster, http";
+                settings.setProperty("deviceName", "koetshuis_kelder");
+                settings.setProperty("services", "I2CMaster, http");
                 break;
             case "00000000748d357c":
-                deviceName = "kasteel_hal";
-                services = "I2CMaster, http";
+                settings.setProperty("deviceName", "kasteel_hal");
+                settings.setProperty("services", "I2CMaster, http");
                 break;
             case "0000000069cec62c":
-                deviceName = "koetshuis_trap";
-                services = "I2CMaster, http";
+                settings.setProperty("deviceName", "koetshuis_trap");
+                settings.setProperty("services", "I2CMaster, http");
                 break;
             case "000000009dbfb2a1":
-                deviceName = "kasteel_zolder";
-                services = "I2CMaster, http, FurnaceMonitor";
-                loggers = "FurnaceStateToInflux";
-                boilerName = "boiler120";
-                boilerSensor = "Ttop";
-                hasAuxilaryTemperature = true;
+                settings.setProperty("deviceName", "kasteel_zolder");
+                settings.setProperty("services", "I2CMaster, http, FurnaceMonitor");
+                settings.setProperty("loggers", "FurnaceStateToInflux");
+                settings.setProperty("boilerName", "boiler120");
+                settings.setProperty("boilerSensor", "Ttop");
+                settings.setProperty("hasAuxilaryTemperature", "true");
                 break;
             case "0000000056718ccc":
-                deviceName = "sensor_room_2";
-                services = "DallasTemperature";
+                settings.setProperty("deviceName", "sensor_room_2");
+                settings.setProperty("services", "DallasTemperature");
                 break;
             case "00000000fee88d9a":
-                deviceName = "sensor_apartment_I";
-                services = "DallasTemperature";
+                settings.setProperty("deviceName", "sensor_apartment_I");
+                settings.setProperty("services", "DallasTemperature");
                 break;
             case "0000000018d4278e":
-                deviceName = "koetshuis_kelder";
-                boilerName = "boiler200";
-                boilerSensor = "Ttop";
-                services = "http, FurnaceMonitor, SolarControl, FurnaceSlave, SolarSlave";
-                loggers = "FurnaceStateToInflux, SolarStateToInflux";
+                settings.setProperty("deviceName", "koetshuis_kelder");
+                settings.setProperty("boilerName", "boiler200");
+                settings.setProperty("boilerSensor", "Ttop");
+                settings.setProperty("services", "daemon, http, FurnaceMonitor, SolarControl, SerialHub");
+                settings.setProperty("loggers", "FurnaceStateToInflux, SolarStateToInflux");
                 break;
         }
+        return settings;
     }
 }
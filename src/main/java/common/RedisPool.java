@@ -0,0 +1,45 @@
+package common;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Process wide pool of connections to the local Redis. Borrow a connection with getResource() and close() it
+ * to hand it back, this way the hot paths do not set up and tear down a TCP connection on every frame.
+ */
+public class RedisPool {
+
+    public final static RedisPool INSTANCE = new RedisPool();
+
+    private final JedisPool pool;
+    private final LatencyStats borrowWait = new LatencyStats("redis pool borrow");
+
+    private RedisPool() {
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(8);
+        config.setMaxIdle(4);
+        config.setMinIdle(1);
+        config.setJmxEnabled(false);
+        pool = new JedisPool(config, "localhost");
+    }
+
+    /** Borrows a connection from the pool, close() returns it */
+    public Jedis getResource() {
+        long start = System.nanoTime();
+        try {
+            return pool.getResource();
+        } finally {
+            borrowWait.since(start);
+        }
+    }
+
+    public String metrics() {
+        return "redis pool active=" + pool.getNumActive() + ", idle=" + pool.getNumIdle()
+                + ", waiters=" + pool.getNumWaiters() + ", " + borrowWait;
+    }
+
+    public void resetMetrics() {
+        borrowWait.reset();
+    }
+}
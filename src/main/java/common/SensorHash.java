@@ -0,0 +1,136 @@
+package common;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sensor readings of one device (boiler500, pipe, boiler200, ...) in a single Redis hash "sensor.[device]".
+ *
+ * Every reading field has a companion field "[field].time" with the time it was sampled (epoch ms), so a reader can
+ * judge freshness without asking Redis for a TTL. A reading older than TTL seconds counts as absent, just like the
+ * old "[device].[field]" string keys that expired after TTL seconds.
+ *
+ * In legacy mode (Properties.legacySensorKeys) the old string keys are written as well and read when the hash has
+ * no fresh value, so processes and scripts that still use them keep working during the migration.
+ */
+public class SensorHash {
+    public final static String PREFIX = "sensor.";
+    public final static String TIME_SUFFIX = ".time";
+    public final static int TTL = 60;
+
+    private final static boolean legacyKeys = Properties.get().legacySensorKeys;
+
+    private final String device;
+    private final Map<String, String> fields = new LinkedHashMap<>();
+    private final Map<String, String> values = new LinkedHashMap<>();
+
+    public SensorHash(String device) {
+        this.device = device;
+    }
+
+    public static String key(String device) {
+        return PREFIX + device;
+    }
+
+    /** The old string key of a reading */
+    public static String legacyKey(String device, String field) {
+        return device + "." + field;
+    }
+
+    /** Stages a reading, it is written with write() */
+    public SensorHash put(String field, double value, long sampleTime) {
+        values.put(field, String.valueOf(value));
+        fields.put(field, String.valueOf(value));
+        fields.put(field + TIME_SUFFIX, String.valueOf(sampleTime));
+        return this;
+    }
+
+    /** Adds the staged readings to the pipeline, that is one HSET and one EXPIRE (plus the legacy keys) */
+    public void write(Pipeline pipeline) {
+        if (fields.isEmpty()) {
+            return;
+        }
+        pipeline.hset(key(device), fields);
+        pipeline.expire(key(device), TTL);
+        if (legacyKeys) {
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                pipeline.setex(legacyKey(device, value.getKey()), TTL, value.getValue());
+            }
+        }
+    }
+
+    public void write(Jedis jedis) {
+        Pipeline pipeline = jedis.pipelined();
+        write(pipeline);
+        pipeline.sync();
+    }
+
+    /** Queues a read of given fields, the values are available from the Reading once the pipeline is synced */
+    public static Reading read(Pipeline pipeline, String device, String... fields) {
+        return new Reading(pipeline, device, fields);
+    }
+
+    public static Reading read(Jedis jedis, String device, String... fields) {
+        Pipeline pipeline = jedis.pipelined();
+        Reading reading = read(pipeline, device, fields);
+        pipeline.sync();
+        return reading;
+    }
+
+    public static class Reading {
+        private final String[] fields;
+        private final Response<List<String>> hash;
+        private final Response<List<String>> legacy;
+
+        private Reading(Pipeline pipeline, String device, String[] fields) {
+            this.fields = fields;
+            String[] hashFields = new String[fields.length*2];
+            String[] legacyKeys = new String[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                hashFields[2*i] = fields[i];
+                hashFields[2*i + 1] = fields[i] + TIME_SUFFIX;
+                legacyKeys[i] = legacyKey(device, fields[i]);
+            }
+            hash = pipeline.hmget(key(device), hashFields);
+            legacy = SensorHash.legacyKeys ? pipeline.mget(legacyKeys) : null;
+        }
+
+        /** The reading if it is fresh, otherwise null */
+        public Double value(String field) {
+            int i = indexOf(field);
+            if (sampleTime(field) != null) {
+                return Double.parseDouble(hash.get().get(2*i));
+            }
+            if (legacy != null && legacy.get().get(i) != null) {
+                return Double.parseDouble(legacy.get().get(i));
+            }
+            return null;
+        }
+
+        /** Sample time (epoch ms) of a fresh reading in the hash, otherwise null */
+        public Long sampleTime(String field) {
+            int i = indexOf(field);
+            String value = hash.get().get(2*i);
+            String time = hash.get().get(2*i + 1);
+            if (value == null || time == null) {
+                return null;
+            }
+            long sampleTime = Long.parseLong(time);
+            return System.currentTimeMillis() - sampleTime > TTL*1000 ? null : sampleTime;
+        }
+
+        private int indexOf(String field) {
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i].equals(field)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("Field " + field + " was not read");
+        }
+    }
+}
@@ -2,6 +2,9 @@ package furnace;
 
 import common.LogstashLogger;
 import common.Properties;
+import common.RedisPool;
+import common.SensorHash;
+import org.json.JSONObject;
 import redis.clients.jedis.Jedis;
 
 import java.io.Closeable;
@@ -14,16 +17,21 @@ public class BoilerDAO implements Closeable {
     public final static String position;
     public final static String boiler;
     public final static String tempKey;
+    public final static String stateKey;
+
+    /** Every furnace frame is published here as JSON, for the /stream endpoint */
+    public final static String FRAME_CHANNEL = "furnace.frame";
 
     static {
-        Properties prop = new Properties();
+        Properties prop = Properties.get();
         boiler = prop.boilerName;
         position = prop.boilerSensor;
         tempKey = boiler + "." + position;
+        stateKey = boiler + ".state";
     }
 
     public BoilerDAO() {
-        jedis = new Jedis("localhost");
+        jedis = RedisPool.INSTANCE.getResource();
     }
 
     public BoilerDAO(Jedis jedis) {
@@ -31,33 +39,47 @@ public class BoilerDAO implements Closeable {
     }
 
     public void setState(boolean state) {
-        jedis.setex(boiler + ".state", TTL1, state ? "ON" : "OFF");
+        jedis.setex(stateKey, TTL1, state ? "ON" : "OFF");
     }
 
     public boolean getState() {
-        if (jedis.exists(boiler + ".state")) {
-            return "ON".equalsIgnoreCase(jedis.get(boiler + ".state"));
-        }
-        return false;
+        return Boolean.TRUE.equals(getStateRaw());
     }
+
     public Boolean getStateRaw() {
-        if (jedis.exists(boiler + ".state")) {
-            return "ON".equalsIgnoreCase(jedis.get(boiler + ".state"));
-        }
-        return null;
+        String state = jedis.get(stateKey);
+        return state == null ? null : "ON".equalsIgnoreCase(state);
     }
 
     public void setTemperature(String temperature) {
-        if (!isOutlier(temperature.trim(), -10.0, 105.0, 20.0, getTemperature())) {
-            jedis.setex(tempKey, TTL1, temperature.trim());
+        try {
+            setTemperature(Double.parseDouble(temperature.trim()));
+        } catch (NumberFormatException e) {
+            LogstashLogger.INSTANCE.warn("Not a parsable temperature '" + temperature + "'");
         }
     }
 
-    public Double getTemperature() {
-        if (jedis.exists(tempKey)) {
-            return Double.parseDouble(jedis.get(tempKey));
+    public void setTemperature(double temperature) {
+        if (!isOutlier(temperature, -10.0, 105.0, 20.0, getTemperature())) {
+            new SensorHash(boiler).put(position, temperature, System.currentTimeMillis()).write(jedis);
+        }
+    }
+
+    /** Publishes a furnace frame on FRAME_CHANNEL, a temperature that is NaN is left out */
+    public void publishFrame(String device, boolean state, double temperature, double auxiliaryTemperature) {
+        JSONObject frame = new JSONObject().put("device", device).put("time", System.currentTimeMillis())
+                .put("state", state ? "ON" : "OFF");
+        if (!Double.isNaN(temperature)) {
+            frame.put("temperature", temperature);
+        }
+        if (!Double.isNaN(auxiliaryTemperature)) {
+            frame.put("auxiliaryTemperature", auxiliaryTemperature);
         }
-        return null;
+        jedis.publish(FRAME_CHANNEL, frame.toString());
+    }
+
+    public Double getTemperature() {
+        return SensorHash.read(jedis, boiler, position).value(position);
     }
 
     public static boolean isOutlier(String temperature, double minTemp, double maxTemp, double maxDelta, Double previousTemperature) {
@@ -68,12 +90,20 @@ public class BoilerDAO implements Closeable {
             LogstashLogger.INSTANCE.warn("Not a parsable temperature '" + temperature + "'");
             return true;
         }
+        return isOutlier(t, minTemp, maxTemp, maxDelta, previousTemperature);
+    }
+
+    public static boolean isOutlier(double t, double minTemp, double maxTemp, double maxDelta, Double previousTemperature) {
+        if (Double.isNaN(t)) {
+            LogstashLogger.INSTANCE.warn("Not a parsable temperature");
+            return true;
+        }
         if (minTemp > t || t > maxTemp) {
-            LogstashLogger.INSTANCE.warn("Temperature outside range " + temperature);
+            LogstashLogger.INSTANCE.warn("Temperature outside range " + t);
             return true;
         }
         if (previousTemperature != null && Math.abs(previousTemperature - t) > maxDelta) {
-            LogstashLogger.INSTANCE.warn("Too large temperature difference " + temperature);
+            LogstashLogger.INSTANCE.warn("Too large temperature difference " + t);
             return true;
         }
         return false;
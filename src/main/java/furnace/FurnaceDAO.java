@@ -1,10 +1,10 @@
 package furnace;
 
 import common.LogstashLogger;
+import common.RedisPool;
 import redis.clients.jedis.Jedis;
 
 import java.io.Closeable;
-import java.util.Calendar;
 
 import static furnace.BoilerDAO.*;
 
@@ -18,7 +18,7 @@ public class FurnaceDAO implements Closeable {
     public static final String AUXILIARY_TEMP_KEY = "auxiliary.temp";
 
     public FurnaceDAO() {
-        jedis = new Jedis("localhost");
+        jedis = RedisPool.INSTANCE.getResource();
     }
 
     public void setFurnaceState(boolean state) {
@@ -30,37 +30,35 @@ public class FurnaceDAO implements Closeable {
     }
 
     public void setAuxiliaryTemperature(String temperature) {
-        if (!isOutlier(temperature.trim(), -30.0, 50.0, 3.0, getAuxiliaryTemperature())) {
-            jedis.setex(AUXILIARY_TEMP_KEY, TTL5, temperature.trim());
+        try {
+            setAuxiliaryTemperature(Double.parseDouble(temperature.trim()));
+        } catch (NumberFormatException e) {
+            LogstashLogger.INSTANCE.warn("Not a parsable temperature '" + temperature + "'");
         }
     }
 
-    public Double getAuxiliaryTemperature() {
-        if (jedis.exists(AUXILIARY_TEMP_KEY)) {
-            return Double.parseDouble(jedis.get(AUXILIARY_TEMP_KEY));
+    public void setAuxiliaryTemperature(double temperature) {
+        if (!isOutlier(temperature, -30.0, 50.0, 3.0, getAuxiliaryTemperature())) {
+            jedis.setex(AUXILIARY_TEMP_KEY, TTL5, String.valueOf(temperature));
         }
-        return null;
+    }
+
+    public Double getAuxiliaryTemperature() {
+        String temperature = jedis.get(AUXILIARY_TEMP_KEY);
+        return temperature == null ? null : Double.parseDouble(temperature);
+    }
+
+    /** Reads all boiler and furnace keys in one round trip */
+    public FurnaceSnapshot snapshot() {
+        return FurnaceSnapshot.load(jedis);
     }
 
     public boolean getFurnaceState() {
-        if (jedis.exists(FURNACE_KEY)) {
-            return "ON".equalsIgnoreCase(jedis.get(FURNACE_KEY));
-        } else {
-            LogstashLogger.INSTANCE.warn("No desired furnace state available from monitor, creating one myself");
-            Calendar now = Calendar.getInstance();
-            if (now.get(Calendar.HOUR) < 23 && now.get(Calendar.HOUR) > 5) {
-                return false;
-            }
-
-            if (getAuxiliaryTemperature() != null) {
-                return getAuxiliaryTemperature() < 16.0;
-            }
-            return now.get(Calendar.MONTH) < 4 || now.get(Calendar.MONTH) > 9;
-        }
+        return snapshot().furnaceOn();
     }
 
     public boolean getPumpState() {
-        return !new BoilerDAO(jedis).getState() && jedis.exists(PUMP_KEY) && "ON".equalsIgnoreCase(jedis.get(PUMP_KEY));
+        return snapshot().pumpOn();
     }
 
     @Override
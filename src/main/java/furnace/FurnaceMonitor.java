@@ -15,7 +15,7 @@ public class FurnaceMonitor {
     private final String deviceName;
 
     public FurnaceMonitor() {
-        Properties properties = new Properties();
+        Properties properties = Properties.get();
         monitorIp = properties.monitorIp;
         monitorPort = properties.monitorPort;
         deviceName = properties.deviceName;
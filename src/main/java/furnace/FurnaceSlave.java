@@ -1,149 +1,108 @@
 package furnace;
 
 import com.fazecast.jSerialComm.SerialPort;
+import common.BinaryFrame;
+import common.Frame;
 import common.LogstashLogger;
 import common.Properties;
-import redis.clients.jedis.Jedis;
 import usb.ListPorts;
+import usb.SerialHandler;
 
-import java.io.Closeable;
 import java.io.IOException;
 
 /**
  * Created by Jaap on 25-7-2016.
+ *
+ * Serial protocol of the furnace controller (FurnaceController), served by the SerialHub. The controller sends text
+ * lines or, when its firmware supports them, BinaryFrames; the reply is in the same format.
+ *
+ * Unlike on i2c the binary version is not negotiated in a hello: the "?" of ListPorts is answered before the hub
+ * opens the port, and nothing of it reaches the handler. A line is taken for a frame when it starts with the exact
+ * version byte, which no text line does, and its CRC must match. FurnaceController only sends text so far.
  */
-public class FurnaceSlave implements Runnable, Closeable {
+public class FurnaceSlave implements SerialHandler {
 
-    private final static int TTL = 60;
-    private final long startTime;
-    private long lastConnection;
-
-    private final Properties prop = new Properties();
+    private final Properties prop = Properties.get();
 
     public final static String STARTTIME = "furnaceslave.runtime.seconds";
 
-    private final SerialPort serialPort;
-    private boolean stayOpen = true;
-
-    private String buffer = "";
-    private String lineIn = "";
-
-    public FurnaceSlave() {
-        startTime = System.currentTimeMillis();
-        lastConnection = System.currentTimeMillis();
-        checkAndExitIfNotSingle();
-        serialPort = ListPorts.findDevice(ListPorts.Device.furnace);
-
-        if (serialPort == null) {
-            LogstashLogger.INSTANCE.error("Could not find USB port, exiting");
-            close();
-            System.exit(0);
-        }
+    private final BinaryFrame frameIn = new BinaryFrame();
+    private final byte[] frameOut = new byte[BinaryFrame.HEADER_SIZE + 2];
+    private int lastSequence = -1;
+    private long missedFrames = 0;
+    private long invalidFrames = 0;
 
-        try (Jedis jedis = new Jedis("localhost")) {
-            jedis.set("usb.furnace", serialPort.getSystemPortName());
-        }
+    @Override
+    public ListPorts.Device device() {
+        return ListPorts.Device.furnace;
     }
 
-    /**
-     * This should be called when you stop using the port.
-     * This will prevent port locking on platforms like Linux.
-     */
-    public void close() {
-        stayOpen = false;
-        if (serialPort != null && serialPort.isOpen()) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) { }
-            serialPort.closePort();
-        }
-        try (Jedis jedis = new Jedis("localhost")) {
-            jedis.del(STARTTIME);
-        }
+    @Override
+    public String startTimeKey() {
+        return STARTTIME;
     }
 
-    public void listen() {
-        if (serialPort.bytesAvailable() > 0) {
-            byte[] readBuffer = new byte[serialPort.bytesAvailable()];
-            serialPort.readBytes(readBuffer, readBuffer.length);
-            String input = new String(readBuffer);
-            if (input.endsWith("\r\n")) {
-                lineIn = buffer + input.split("\r\n")[0];
-                buffer = "";
-            } else if (input.contains("\r\n")) {
-                lineIn = buffer + input.split("\r\n")[0];
-                buffer = input.split("\r\n")[1];
-            } else {
-                buffer += input;
-            }
-        }
+    @Override
+    public void report() {
+        LogstashLogger.INSTANCE.info("Furnace binary frames missed=" + missedFrames + ", invalid=" + invalidFrames);
+        missedFrames = 0;
+        invalidFrames = 0;
     }
 
-    public void respond() {
-        if (!lineIn.equals("")) {
-            LogstashLogger.INSTANCE.info("Serial input from furnace: " + lineIn);
-            String[] lineParts = lineIn.split(":");
-            if (lineIn.startsWith("log:furnace:")) {
-                LogstashLogger.INSTANCE.message("iot-furnace-controller-" + prop.deviceName, lineIn.substring(12).trim());
-            } else if (lineParts.length >= 3) {
-                //Format: "furnace:"[furnace state]:[boiler temp]:[auxiliary temp]
-                LogstashLogger.INSTANCE.info("Furnace event " + lineIn);
-                try (FurnaceDAO furnaceDAO = new FurnaceDAO(); BoilerDAO boilerDAO = new BoilerDAO()) {
-                    boilerDAO.setState("1".equalsIgnoreCase(lineParts[1]));
-                    boilerDAO.setTemperature(lineParts[2]);
-                    if (lineParts.length > 3) {
-                        furnaceDAO.setAuxiliaryTemperature(lineParts[3]);
-                    }
-                    try {
-                        serialPort.getOutputStream().write(furnaceDAO.getFurnaceState() ? 'T' : 'F');
-                        serialPort.getOutputStream().write(furnaceDAO.getPumpState() ? 'T' : 'F');
-                        serialPort.getOutputStream().flush();
-                    } catch (IOException e) {
-                        LogstashLogger.INSTANCE.error("Writing to furnace controller");
-                        close();
-                        System.exit(0);
-                    }
+    @Override
+    public void respond(Frame lineIn, SerialPort serialPort) throws IOException {
+        if (BinaryFrame.isBinary(lineIn.buffer()[0])) {
+            respondBinary(lineIn, serialPort);
+            return;
+        }
+        LogstashLogger.INSTANCE.info("Serial input from furnace: " + lineIn);
+        if (lineIn.startsWith("log:furnace:")) {
+            LogstashLogger.INSTANCE.message("iot-furnace-controller-" + prop.deviceName, lineIn.substring(12).trim());
+        } else if (lineIn.fieldCount() >= 3) {
+            //Format: "furnace:"[furnace state]:[boiler temp]:[auxiliary temp]
+            LogstashLogger.INSTANCE.info("Furnace event " + lineIn);
+            try (FurnaceDAO furnaceDAO = new FurnaceDAO(); BoilerDAO boilerDAO = new BoilerDAO()) {
+                boilerDAO.setState(lineIn.fieldEquals(1, "1"));
+                boilerDAO.setTemperature(lineIn.doubleField(2));
+                if (lineIn.fieldCount() > 3) {
+                    furnaceDAO.setAuxiliaryTemperature(lineIn.doubleField(3));
                 }
-            } else {
-                LogstashLogger.INSTANCE.error("Received garbage from the Furnace micro controller: " + lineIn);
-            }
-            lineIn = "";
-            try (Jedis jedis = new Jedis("localhost")) {
-                jedis.setex(STARTTIME, TTL, String.valueOf((int)((System.currentTimeMillis() - startTime)/1000)));
+                boilerDAO.publishFrame(device().name(), lineIn.fieldEquals(1, "1"), lineIn.doubleField(2)
+                        , lineIn.fieldCount() > 3 ? lineIn.doubleField(3) : Double.NaN);
+                FurnaceSnapshot snapshot = furnaceDAO.snapshot();
+                serialPort.getOutputStream().write(snapshot.furnaceOn() ? 'T' : 'F');
+                serialPort.getOutputStream().write(snapshot.pumpOn() ? 'T' : 'F');
+                serialPort.getOutputStream().flush();
             }
-            lastConnection = System.currentTimeMillis();
+        } else {
+            LogstashLogger.INSTANCE.error("Received garbage from the Furnace micro controller: " + lineIn);
         }
     }
 
-    public void run() {
-        LogstashLogger.INSTANCE.info("Starting FurnaceSlave");
-        while (stayOpen) {
-            if (!serialPort.isOpen()) {
-                serialPort.openPort();
-            }
-
-            listen();
-            respond();
-
-            if (System.currentTimeMillis() - lastConnection > TTL*1000) {
-                LogstashLogger.INSTANCE.error("Closing furnace controller usb connection after timeout of inactivity.");
-                System.out.println("Perhaps lost the furnace serial connection, closing");
-                close();
-                System.exit(0);
-            }
-
-            try {
-                Thread.sleep(150);
-            } catch (InterruptedException e) { }
+    /** The binary version of the furnace event, the reply is binary as well, with the sequence of the event */
+    private void respondBinary(Frame lineIn, SerialPort serialPort) throws IOException {
+        if (!frameIn.read(lineIn) || frameIn.type() != BinaryFrame.TYPE_FURNACE_STATE) {
+            invalidFrames++;
+            LogstashLogger.INSTANCE.error("Received an invalid frame from the Furnace micro controller: "
+                    + (frameIn.error() != null ? frameIn.error() : frameIn.toString()));
+            return;
         }
-    }
-
-    private void checkAndExitIfNotSingle() {
-        try (Jedis jedis = new Jedis("localhost")) {
-            if (jedis.exists(STARTTIME)) {
-                System.exit(0);
+        missedFrames += BinaryFrame.missed(lastSequence, frameIn.sequence());
+        lastSequence = frameIn.sequence();
+        LogstashLogger.INSTANCE.info("Furnace event " + frameIn);
+        try (FurnaceDAO furnaceDAO = new FurnaceDAO(); BoilerDAO boilerDAO = new BoilerDAO()) {
+            boilerDAO.setState(frameIn.flag(0, 0));
+            boilerDAO.setTemperature(frameIn.temperature(1));
+            if (frameIn.int16(3) != BinaryFrame.MISSING) {
+                furnaceDAO.setAuxiliaryTemperature(frameIn.temperature(3));
             }
-            jedis.setex(STARTTIME, TTL, String.valueOf((int)((System.currentTimeMillis() - startTime)/1000)));
+            boilerDAO.publishFrame(device().name(), frameIn.flag(0, 0), frameIn.temperature(1)
+                    , frameIn.temperature(3));
+            FurnaceSnapshot snapshot = furnaceDAO.snapshot();
+            int length = BinaryFrame.writeFlags(frameOut, BinaryFrame.TYPE_FURNACE_REQUEST, frameIn.sequence()
+                    , snapshot.furnaceOn(), snapshot.pumpOn());
+            serialPort.getOutputStream().write(frameOut, 0, length);
+            serialPort.getOutputStream().flush();
         }
     }
 }
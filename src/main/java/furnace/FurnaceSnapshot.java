@@ -0,0 +1,77 @@
+package furnace;
+
+import common.LogstashLogger;
+import common.SensorHash;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * All Redis keys of the boiler and furnace, read in one round trip. A value is null when its key is not (or no longer)
+ * in Redis.
+ */
+public class FurnaceSnapshot {
+
+    private final static String[] KEYS = {BoilerDAO.stateKey
+            , FurnaceDAO.FURNACE_KEY, FurnaceDAO.PUMP_KEY, FurnaceDAO.AUXILIARY_TEMP_KEY};
+
+    public final Boolean boilerState;
+    public final Double boilerTemperature;
+    /** Furnace state as desired by the monitor */
+    public final Boolean furnaceState;
+    /** Pump state as desired by the monitor */
+    public final Boolean pumpState;
+    public final Double auxiliaryTemperature;
+
+    private FurnaceSnapshot(List<String> values, SensorHash.Reading boiler) {
+        boilerState = toState(values.get(0));
+        boilerTemperature = boiler.value(BoilerDAO.position);
+        furnaceState = toState(values.get(1));
+        pumpState = toState(values.get(2));
+        auxiliaryTemperature = toDouble(values.get(3));
+    }
+
+    public static FurnaceSnapshot load(Jedis jedis) {
+        Pipeline pipeline = jedis.pipelined();
+        Response<List<String>> values = pipeline.mget(KEYS);
+        SensorHash.Reading boiler = SensorHash.read(pipeline, BoilerDAO.boiler, BoilerDAO.position);
+        pipeline.sync();
+        return new FurnaceSnapshot(values.get(), boiler);
+    }
+
+    /**
+     * The furnace state to pass on to the furnace controller. Without a state from the monitor a state is made up
+     * from the time and the auxiliary temperature.
+     */
+    public boolean furnaceOn() {
+        if (furnaceState != null) {
+            return furnaceState;
+        }
+        LogstashLogger.INSTANCE.warn("No desired furnace state available from monitor, creating one myself");
+        Calendar now = Calendar.getInstance();
+        if (now.get(Calendar.HOUR) < 23 && now.get(Calendar.HOUR) > 5) {
+            return false;
+        }
+
+        if (auxiliaryTemperature != null) {
+            return auxiliaryTemperature < 16.0;
+        }
+        return now.get(Calendar.MONTH) < 4 || now.get(Calendar.MONTH) > 9;
+    }
+
+    /** The pump state to pass on to the furnace controller, the pump is kept off while the boiler is heated */
+    public boolean pumpOn() {
+        return !Boolean.TRUE.equals(boilerState) && Boolean.TRUE.equals(pumpState);
+    }
+
+    private static Boolean toState(String value) {
+        return value == null ? null : "ON".equalsIgnoreCase(value);
+    }
+
+    private static Double toDouble(String value) {
+        return value == null ? null : Double.parseDouble(value);
+    }
+}
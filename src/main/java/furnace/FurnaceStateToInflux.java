@@ -13,22 +13,24 @@ public class FurnaceStateToInflux extends FluxLogger implements Runnable {
 
     @Override
     public void run() {
-        try (BoilerDAO boilerDAO = new BoilerDAO(); FurnaceDAO furnaceDAO = new FurnaceDAO()) {
-            if (boilerDAO.getTemperature() != null) {
-                send("boiler,name=" + BoilerDAO.boiler + ",position=" + BoilerDAO.position
-                        + " temperature=" + boilerDAO.getTemperature());
-            } else {
-                LogstashLogger.INSTANCE.warn("No temperature for " + BoilerDAO.tempKey);
-            }
-            if (boilerDAO.getStateRaw() != null) {
-                send("boiler,name=" + BoilerDAO.boiler + " state=" + (boilerDAO.getState() ? "1" : "0"));
-            } else {
-                LogstashLogger.INSTANCE.warn("There is no state in Redis to log boiler state");
-            }
-            if (furnaceDAO.getAuxiliaryTemperature() != null) {
-                send("environment,device=" + new Properties().deviceName
-                        + " temperature=" + furnaceDAO.getAuxiliaryTemperature());
-            }
+        FurnaceSnapshot snapshot;
+        try (FurnaceDAO furnaceDAO = new FurnaceDAO()) {
+            snapshot = furnaceDAO.snapshot();
+        }
+        if (snapshot.boilerTemperature != null) {
+            send("boiler,name=" + BoilerDAO.boiler + ",position=" + BoilerDAO.position
+                    + " temperature=" + snapshot.boilerTemperature);
+        } else {
+            LogstashLogger.INSTANCE.warn("No temperature for " + BoilerDAO.tempKey);
+        }
+        if (snapshot.boilerState != null) {
+            send("boiler,name=" + BoilerDAO.boiler + " state=" + (snapshot.boilerState ? "1" : "0"));
+        } else {
+            LogstashLogger.INSTANCE.warn("There is no state in Redis to log boiler state");
+        }
+        if (snapshot.auxiliaryTemperature != null) {
+            send("environment,device=" + Properties.get().deviceName
+                    + " temperature=" + snapshot.auxiliaryTemperature);
         }
     }
 }
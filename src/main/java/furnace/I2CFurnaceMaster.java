@@ -1,13 +1,17 @@
 package furnace;
 
-import com.pi4j.io.i2c.I2CDevice;
+import common.BinaryFrame;
+import common.Frame;
 import common.LogstashLogger;
+import i2c.Bus;
 import i2c.I2CMaster;
 import i2c.I2CUtil;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Handles requests and responses from a connected Arduino valvegroup (I2CValveBridge)
@@ -23,97 +27,159 @@ public class I2CFurnaceMaster implements I2CMaster {
         }
     }
 
-    final Map<String, I2CDevice> devices = new HashMap<>();
+    final Map<String, Bus.Device> devices = new HashMap<>();
 
-    public Map<String, I2CDevice> devices() {return devices;}
+    public Map<String, Bus.Device> devices() {return devices;}
+
+    /** The furnaces that advertised a BinaryFrame version in their hello */
+    final Set<String> binaryDevices = new HashSet<>();
+
+    public Set<String> binaryDevices() {return binaryDevices;}
+
+    /** The i2c bus is used by one thread, so one request and one response buffer serve all devices */
+    private final byte[] slaveRequest = new byte[BinaryFrame.HEADER_SIZE + 2];
+    private int requestLength;
+    private boolean furnaceOn;
+    private boolean pumpOn;
+    private int sequence = 0;
+    private final Frame slaveResponse = I2CUtil.responseFrame();
+    private final BinaryFrame binaryResponse = new BinaryFrame();
 
     public boolean request(String deviceName) {
         try {
-            devices.get(deviceName).write(slaveRequest().getBytes());
-            String slaveResponse = I2CUtil.byteToString(devices.get(deviceName));
+            boolean binary = binaryDevices.contains(deviceName);
+            slaveRequest(binary);
+            Bus.Device device = devices.get(deviceName);
+            device.write(slaveRequest, 0, requestLength);
+            I2CUtil.read(device, slaveResponse, binary);
+            if (binary) {
+                return binaryResponse(deviceName);
+            }
 
-            int matchCount = slaveResponse.split(":").length;
+            int matchCount = slaveResponse.fieldCount();
             if (matchCount >= minimumSlaveResponse) {
-                state2Redis(slaveResponse);
+                state2Redis(deviceName, slaveResponse);
                 if (matchCount == minimumSlaveResponse + 1) {
                     send2Log(slaveResponse);
                 }
-                LogstashLogger.INSTANCE.info("Requested furnace slave, request: " + slaveRequest()
+                LogstashLogger.INSTANCE.info("Requested furnace slave, request: " + requestString()
                         + " and slave response: " + slaveResponse);
             } else {
                 LogstashLogger.INSTANCE.error("Furnace slave response was not expected: " + slaveResponse
-                        + ", after slave request: " + slaveRequest());
+                        + ", after slave request: " + requestString());
             }
         } catch (IOException e) {
-            LogstashLogger.INSTANCE.error("Rescanning bus after communication error for " + deviceName);
+            LogstashLogger.INSTANCE.error("Communication error for " + deviceName);
             return false;
         }
 
         return true;
     }
 
-    private String slaveRequest() {
-        String slaveRequest;
+    /** A binary response that is corrupt, or answers another request, counts as a communication error */
+    private boolean binaryResponse(String deviceName) {
+        if (!binaryResponse.read(slaveResponse.buffer(), 0, slaveResponse.length())) {
+            LogstashLogger.INSTANCE.error("Invalid frame from furnace slave " + deviceName + ", "
+                    + binaryResponse.error());
+            return false;
+        }
+        if (binaryResponse.type() != BinaryFrame.TYPE_FURNACE_STATE || binaryResponse.sequence() != sequence) {
+            LogstashLogger.INSTANCE.error("Furnace slave response was not expected: " + binaryResponse
+                    + ", after slave request: " + requestString() + " seq=" + sequence);
+            return false;
+        }
+        state2Redis(deviceName, binaryResponse.flag(0, 0), binaryResponse.temperature(1)
+                , binaryResponse.temperature(3));
+        send2Log(binaryResponse.uint8(5));
+        LogstashLogger.INSTANCE.info("Requested furnace slave, request: " + requestString()
+                + " and slave response: " + binaryResponse);
+        return true;
+    }
+
+    private void slaveRequest(boolean binary) {
         try (FurnaceDAO furnaceDAO = new FurnaceDAO()) {
-            slaveRequest = furnaceDAO.getFurnaceState() ? "T" : "F";
-            slaveRequest += furnaceDAO.getPumpState() ? "T" : "F";
+            FurnaceSnapshot snapshot = furnaceDAO.snapshot();
+            furnaceOn = snapshot.furnaceOn();
+            pumpOn = snapshot.pumpOn();
+        }
+        if (binary) {
+            sequence = (sequence + 1) & 0xFF;
+            requestLength = BinaryFrame.writeFlags(slaveRequest, BinaryFrame.TYPE_FURNACE_REQUEST, sequence
+                    , furnaceOn, pumpOn);
+        } else {
+            slaveRequest[0] = (byte)(furnaceOn ? 'T' : 'F');
+            slaveRequest[1] = (byte)(pumpOn ? 'T' : 'F');
+            requestLength = 2;
         }
-        return slaveRequest;
     }
 
-    void send2Log(String slaveResponse) {
-        try {
-            int code = Integer.parseInt(slaveResponse.split(":")[minimumSlaveResponse].trim());
-            switch (code) {
-                case 0:
-                    // do nothing, no log to mention
-                    break;
-                case 1:
-                    LogstashLogger.INSTANCE.info("Starting (furnace controller)");
-                    break;
-                case 2:
-                    LogstashLogger.INSTANCE.info("Furnace switching off (furnace controller)");
-                    break;
-                case 3:
-                    LogstashLogger.INSTANCE.info("Opening boiler valve (furnace controller)");
-                    break;
-                case 4:
-                    LogstashLogger.INSTANCE.info("Turning off boiler (furnace controller)");
-                    break;
-                case 20:
-                    LogstashLogger.INSTANCE.warn("Unconnected, using aux temp (furnace controller)");
-                    break;
-                case 21:
-                    LogstashLogger.INSTANCE.warn("Unconnected, simply turned on (furnace controller)");
-                    break;
-                case 22:
-                    LogstashLogger.INSTANCE.warn("Unexpected master command (furnace controller)");
-                    break;
-                case 23:
-                    LogstashLogger.INSTANCE.warn("Temperature read failure (furnace controller)");
-                    break;
-                case 40:
-                    LogstashLogger.INSTANCE.error("Sensor init: incomplete sensor count (furnace controller)");
-                    break;
-                default:
-                    LogstashLogger.INSTANCE.error("Unknown logCode: " + code + " from furnace controller");
-                    break;
-            }
-        } catch (Exception e) {
-            LogstashLogger.INSTANCE.error("Could not log the code message from this response " + slaveResponse
-                    + ", " + e.getMessage());
+    private String requestString() {
+        return (furnaceOn ? "T" : "F") + (pumpOn ? "T" : "F");
+    }
+
+    void send2Log(Frame slaveResponse) {
+        int code = slaveResponse.intField(minimumSlaveResponse);
+        if (code < 0) {
+            LogstashLogger.INSTANCE.error("Could not log the code message from this response " + slaveResponse);
+        } else {
+            send2Log(code);
         }
     }
-    
-    void state2Redis(String slaveResponse) {
+
+    void send2Log(int code) {
+        switch (code) {
+            case 0:
+                // do nothing, no log to mention
+                break;
+            case 1:
+                LogstashLogger.INSTANCE.info("Starting (furnace controller)");
+                break;
+            case 2:
+                LogstashLogger.INSTANCE.info("Furnace switching off (furnace controller)");
+                break;
+            case 3:
+                LogstashLogger.INSTANCE.info("Opening boiler valve (furnace controller)");
+                break;
+            case 4:
+                LogstashLogger.INSTANCE.info("Turning off boiler (furnace controller)");
+                break;
+            case 20:
+                LogstashLogger.INSTANCE.warn("Unconnected, using aux temp (furnace controller)");
+                break;
+            case 21:
+                LogstashLogger.INSTANCE.warn("Unconnected, simply turned on (furnace controller)");
+                break;
+            case 22:
+                LogstashLogger.INSTANCE.warn("Unexpected master command (furnace controller)");
+                break;
+            case 23:
+                LogstashLogger.INSTANCE.warn("Temperature read failure (furnace controller)");
+                break;
+            case 40:
+                LogstashLogger.INSTANCE.error("Sensor init: incomplete sensor count (furnace controller)");
+                break;
+            default:
+                LogstashLogger.INSTANCE.error("Unknown logCode: " + code + " from furnace controller");
+                break;
+        }
+    }
+
+    void state2Redis(String deviceName, Frame slaveResponse) {
+        state2Redis(deviceName, slaveResponse.fieldEquals(0, "1"), slaveResponse.doubleField(1)
+                , slaveResponse.doubleField(2));
+    }
+
+    void state2Redis(String deviceName, boolean boilerOn, double boilerTemperature, double auxiliaryTemperature) {
         try (BoilerDAO boilerDAO = new BoilerDAO()) {
-            boilerDAO.setState("1".equals(slaveResponse.split(":")[0].trim()));
-            boilerDAO.setTemperature(slaveResponse.split(":")[1]);
+            boilerDAO.setState(boilerOn);
+            boilerDAO.setTemperature(boilerTemperature);
             if (hasAuxiliryTemperature) {
                 try (FurnaceDAO furnaceDAO = new FurnaceDAO()) {
-                    furnaceDAO.setAuxiliaryTemperature(slaveResponse.split(":")[2]);
+                    furnaceDAO.setAuxiliaryTemperature(auxiliaryTemperature);
                 }
             }
+            boilerDAO.publishFrame(deviceName, boilerOn, boilerTemperature
+                    , hasAuxiliryTemperature ? auxiliaryTemperature : Double.NaN);
         }
     }
 }
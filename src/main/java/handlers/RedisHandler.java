@@ -5,42 +5,175 @@ import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.StreamEntry;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.Tuple;
 import common.LogstashLogger;
+import common.RedisPool;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created by Jaap on 12-12-2016.
+ *
+ * Dumps the Redis keys as JSON, [key]: {"value": ..., "ttl": ...}. The keys are read with SCAN, and the type, ttl
+ * and value of a batch of keys are fetched in two pipelined round trips. The JSON is written while scanning, so the
+ * dump is never held in memory as a whole. Lists, sets, sorted sets and streams show their first MAX_ELEMENTS.
+ *
+ * Query parameters: prefix (only keys that start with it), count (about this many keys per page, all when absent)
+ * and cursor (the cursor of the previous page, the dump ends with the cursor of the next page, "0" after the last).
  */
 public class RedisHandler extends AbstractHandler {
+    private final static int BATCH_SIZE = 100;
+    private final static int MAX_ELEMENTS = 100;
+
     @Override
     public void handle(String s, Request request, HttpServletRequest httpServletRequest, HttpServletResponse response) throws IOException, ServletException {
         LogstashLogger.INSTANCE.info("Redis request: " + s);
 
-        JSONArray redisResponse = new JSONArray();
-        try (Jedis jedis = new Jedis("localhost")) {
-            List<String> all = new ArrayList<>(jedis.keys("*"));
-            Collections.sort(all);
-
-            for (String key : all) {
-                if (!"pipe.TflowSet".equals(key)) {
-                    //todo expand for this type
-                    redisResponse.put(new JSONObject().put(key, new JSONObject()
-                            .put("value", jedis.get(key))
-                            .put("ttl", jedis.ttl(key))));
-                }
+        // The parameters are checked before anything is written, once the dump has started the status cannot change
+        String prefix = request.getParameter("prefix");
+        String cursor = request.getParameter("cursor") != null ? request.getParameter("cursor") : ScanParams.SCAN_POINTER_START;
+        int count;
+        try {
+            // A cursor is an unsigned 64 bit number, Redis takes no sign
+            if (!cursor.matches("[0-9]+")) {
+                throw new NumberFormatException(cursor);
             }
+            Long.parseUnsignedLong(cursor);
+        } catch (NumberFormatException e) {
+            badRequest(request, response, "cursor is not a cursor of a previous page");
+            return;
+        }
+        try {
+            count = request.getParameter("count") != null ? Integer.parseInt(request.getParameter("count")) : Integer.MAX_VALUE;
+        } catch (NumberFormatException e) {
+            badRequest(request, response, "count is not a number");
+            return;
+        }
+        if (count <= 0) {
+            badRequest(request, response, "count must be positive");
+            return;
+        }
+        ScanParams params = new ScanParams().count(BATCH_SIZE)
+                .match(prefix == null ? "*" : escapeGlob(prefix) + "*");
+
+        // Borrowed before the status is set, so an unavailable Redis is still an error response
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            response.setContentType("application/json");
+            response.setStatus(HttpServletResponse.SC_OK);
+            Writer writer = response.getWriter();
+            writer.write("{\"dump\":[");
+            int written = 0;
+            do {
+                ScanResult<String> scan = jedis.scan(cursor, params);
+                cursor = scan.getCursor();
+                List<String> keys = new ArrayList<>(scan.getResult());
+                Collections.sort(keys);
+                for (JSONObject entry : entries(jedis, keys)) {
+                    if (written++ > 0) {
+                        writer.write(",\n");
+                    }
+                    entry.write(writer);
+                }
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor) && written < count);
+            writer.write("],\n\"cursor\":");
+            writer.write(JSONObject.quote(cursor));
+            writer.write("}\n");
         }
+        request.setHandled(true);
+    }
 
-        response.setContentType("application/json");
-        response.setStatus(HttpServletResponse.SC_OK);
-        response.getWriter().println(new JSONObject().put("dump", redisResponse).toString(2));
+    private static void badRequest(Request request, HttpServletResponse response, String message) throws IOException {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, message);
         request.setHandled(true);
     }
+
+    private List<JSONObject> entries(Jedis jedis, List<String> keys) {
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<String>> types = new ArrayList<>(keys.size());
+        List<Response<Long>> ttls = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            types.add(pipeline.type(key));
+            ttls.add(pipeline.ttl(key));
+        }
+        pipeline.sync();
+
+        List<Response<?>> values = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            values.add(value(pipeline, keys.get(i), types.get(i).get()));
+        }
+        pipeline.sync();
+
+        List<JSONObject> entries = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Response<?> value = values.get(i);
+            if (value == null) {
+                // Expired between the scan and the fetch
+                continue;
+            }
+            entries.add(new JSONObject().put(keys.get(i), new JSONObject()
+                    .put("type", types.get(i).get())
+                    .put("value", json(value.get()))
+                    .put("ttl", ttls.get(i).get())));
+        }
+        return entries;
+    }
+
+    private static Response<?> value(Pipeline pipeline, String key, String type) {
+        switch (type) {
+            case "string":
+                return pipeline.get(key);
+            case "hash":
+                return pipeline.hgetAll(key);
+            case "list":
+                return pipeline.lrange(key, 0, MAX_ELEMENTS - 1);
+            case "set":
+                return pipeline.smembers(key);
+            case "zset":
+                return pipeline.zrangeWithScores(key, 0, MAX_ELEMENTS - 1);
+            case "stream":
+                return pipeline.xrange(key, new StreamEntryID(), new StreamEntryID(Long.MAX_VALUE, Long.MAX_VALUE)
+                        , MAX_ELEMENTS);
+            default:
+                return null;
+        }
+    }
+
+    private static Object json(Object value) {
+        if (value instanceof List && !((List<?>)value).isEmpty() && ((List<?>)value).get(0) instanceof StreamEntry) {
+            JSONArray entries = new JSONArray();
+            for (Object entry : (List<?>)value) {
+                entries.put(new JSONObject().put("id", ((StreamEntry)entry).getID().toString())
+                        .put("fields", new JSONObject(((StreamEntry)entry).getFields())));
+            }
+            return entries;
+        }
+        if (value instanceof Set && !((Set<?>)value).isEmpty()
+                && ((Set<?>)value).iterator().next() instanceof Tuple) {
+            JSONObject scores = new JSONObject();
+            for (Object tuple : (Set<?>)value) {
+                scores.put(((Tuple)tuple).getElement(), ((Tuple)tuple).getScore());
+            }
+            return scores;
+        }
+        return JSONObject.wrap(value);
+    }
+
+    /** SCAN matches a glob pattern, the prefix is taken literally */
+    private static String escapeGlob(String prefix) {
+        return prefix.replaceAll("([*?\\[\\]\\\\])", "\\\\$1");
+    }
 }
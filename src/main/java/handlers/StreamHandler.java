@@ -0,0 +1,187 @@
+package handlers;
+
+import common.LogstashLogger;
+import common.RedisPool;
+import furnace.BoilerDAO;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.json.JSONException;
+import org.json.JSONObject;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisException;
+import solar.RedisControllerStore;
+import solar.SolarSlave;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Pushes the furnace frames, solar readings and solar state transitions to the connected clients as Server-Sent
+ * Events, the Redis channel is the event name and the message its data.
+ *
+ * One Redis subscription serves all clients. Every client has a buffer that holds the latest message of each channel,
+ * so a slow client skips to the newest update instead of falling behind, and the buffer never holds more than one
+ * message per channel. All furnaces publish on the frame channel, there the buffer holds the latest frame of each
+ * device. Each client has a request thread of Jetty that writes its events, at most MAX_CLIENTS.
+ */
+public class StreamHandler extends AbstractHandler {
+    public final static String[] CHANNELS = {BoilerDAO.FRAME_CHANNEL, SolarSlave.READINGS_CHANNEL
+            , RedisControllerStore.TRANSITION_CHANNEL};
+
+    private final static int MAX_CLIENTS = 16;
+    /** A comment is sent when there is nothing else, so proxies and Jetty keep the connection open */
+    private final static long KEEP_ALIVE_MS = 15000;
+    private final static long RECONNECT_MS = 5000;
+
+    private static class Client {
+        /** The latest channel and message per key, see key() */
+        private final Map<String, Map.Entry<String, String>> pending = new LinkedHashMap<>();
+        private long sent = 0;
+        private long coalesced = 0;
+
+        synchronized void offer(String key, String channel, String message) {
+            if (pending.put(key, new AbstractMap.SimpleImmutableEntry<>(channel, message)) != null) {
+                coalesced++;
+            }
+            notifyAll();
+        }
+
+        /** Waits for messages, but no longer than given time, and takes them as channel and message */
+        synchronized List<Map.Entry<String, String>> take(long timeoutMs) throws InterruptedException {
+            if (pending.isEmpty()) {
+                wait(timeoutMs);
+            }
+            List<Map.Entry<String, String>> messages = new ArrayList<>(pending.values());
+            pending.clear();
+            sent += messages.size();
+            return messages;
+        }
+
+        synchronized void wake() {
+            notifyAll();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return sent + " events, " + coalesced + " coalesced";
+        }
+    }
+
+    private final Set<Client> clients = new CopyOnWriteArraySet<>();
+    /** A client holds a slot, and with it a Jetty thread, until it leaves */
+    private final Semaphore slots = new Semaphore(MAX_CLIENTS);
+
+    private final JedisPubSub subscriber = new JedisPubSub() {
+        @Override
+        public void onMessage(String channel, String message) {
+            String key = key(channel, message);
+            for (Client client : clients) {
+                client.offer(key, channel, message);
+            }
+        }
+    };
+
+    /** The buffer key, for a furnace frame it includes the device so the frame of one furnace does not replace another */
+    private static String key(String channel, String message) {
+        if (BoilerDAO.FRAME_CHANNEL.equals(channel)) {
+            try {
+                return channel + ":" + new JSONObject(message).optString("device");
+            } catch (JSONException e) {
+                LogstashLogger.INSTANCE.warn("Not a furnace frame '" + message + "'");
+            }
+        }
+        return channel;
+    }
+
+    private Thread listener;
+
+    @Override
+    protected void doStart() throws Exception {
+        listener = new Thread(this::listen, "stream-listener");
+        listener.setDaemon(true);
+        listener.start();
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (subscriber.isSubscribed()) {
+            subscriber.unsubscribe();
+        }
+        listener.interrupt();
+        for (Client client : clients) {
+            client.wake();
+        }
+        super.doStop();
+    }
+
+    /** Keeps the subscription, it is renewed when the Redis connection is lost */
+    private void listen() {
+        while (isStarting() || isRunning()) {
+            try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+                LogstashLogger.INSTANCE.info("Stream listening on " + String.join(", ", CHANNELS));
+                jedis.subscribe(subscriber, CHANNELS);
+            } catch (JedisException e) {
+                LogstashLogger.INSTANCE.warn("Stream subscription lost, " + e.getMessage());
+                try {
+                    Thread.sleep(RECONNECT_MS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void handle(String s, Request request, HttpServletRequest httpServletRequest, HttpServletResponse response) throws IOException {
+        request.setHandled(true);
+        if (!slots.tryAcquire()) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many stream clients");
+            return;
+        }
+        Client client = new Client();
+        try {
+            LogstashLogger.INSTANCE.info("Stream request: " + s + " from " + request.getRemoteAddr());
+
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("text/event-stream");
+            response.setCharacterEncoding("UTF-8");
+            response.setHeader("Cache-Control", "no-cache");
+            PrintWriter writer = response.getWriter();
+            writer.write(": connected\n\n");
+            response.flushBuffer();
+
+            clients.add(client);
+            while (isRunning()) {
+                List<Map.Entry<String, String>> messages = client.take(KEEP_ALIVE_MS);
+                if (messages.isEmpty()) {
+                    writer.write(":\n\n");
+                }
+                for (Map.Entry<String, String> message : messages) {
+                    writer.write("event: " + message.getKey() + "\ndata: " + message.getValue() + "\n\n");
+                }
+                // Flushes, the writer does not throw when the client has left but reports an error
+                if (writer.checkError()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            clients.remove(client);
+            slots.release();
+            LogstashLogger.INSTANCE.info("Stream client " + request.getRemoteAddr() + " left after " + client);
+        }
+    }
+}
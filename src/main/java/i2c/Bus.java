@@ -0,0 +1,26 @@
+package i2c;
+
+import java.io.IOException;
+
+/**
+ * The i2c bus as seen by the Master, so the polling can run on a Pi (Pi4jBus) as well as against simulated slaves
+ * (SimulatedBus).
+ */
+public interface Bus {
+
+    /** A slave address on the bus. Whether a slave responds there shows on the first write or read. */
+    interface Device {
+        int address();
+
+        void write(byte[] buffer, int offset, int size) throws IOException;
+
+        /** @return the number of bytes read */
+        int read(byte[] buffer, int offset, int size) throws IOException;
+
+        default void write(byte[] buffer) throws IOException {
+            write(buffer, 0, buffer.length);
+        }
+    }
+
+    Device device(int address) throws IOException;
+}
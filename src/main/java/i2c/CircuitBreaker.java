@@ -0,0 +1,88 @@
+package i2c;
+
+/**
+ * Health of one i2c slave. After FAILURE_THRESHOLD failed requests in a row the slave is quarantined: it is not
+ * requested anymore, only its address is probed when the DeviceScheduler backoff makes it due. When it responds to
+ * the probe it gets one request (half open), and is back in service when that succeeds.
+ *
+ * Not thread safe, it is used by the thread that drives the bus (Master).
+ */
+public class CircuitBreaker {
+    public enum State { closed, open, halfOpen }
+
+    public final static int FAILURE_THRESHOLD = 3;
+
+    private State state = State.closed;
+    private int failuresInRow = 0;
+    private long quarantineStart;
+
+    private long failures = 0;
+    private long retries = 0;
+    private long quarantines = 0;
+    private long quarantineMillis = 0;
+
+    public State state() {
+        return state;
+    }
+
+    /** False while quarantined, probe the address and call probed() instead of requesting */
+    public boolean allowsRequest() {
+        return state != State.open;
+    }
+
+    public void retry() {
+        retries++;
+    }
+
+    public void success() {
+        if (state != State.closed) {
+            quarantineMillis += System.currentTimeMillis() - quarantineStart;
+        }
+        state = State.closed;
+        failuresInRow = 0;
+    }
+
+    /** @return true when this failure puts the slave in quarantine */
+    public boolean failure() {
+        failures++;
+        failuresInRow++;
+        if (state == State.halfOpen) {
+            state = State.open;
+        } else if (state == State.closed && failuresInRow >= FAILURE_THRESHOLD) {
+            state = State.open;
+            quarantineStart = System.currentTimeMillis();
+            quarantines++;
+            return true;
+        }
+        return false;
+    }
+
+    public void probed(boolean responded) {
+        if (state == State.open && responded) {
+            state = State.halfOpen;
+        }
+    }
+
+    public long failures() {
+        return failures;
+    }
+
+    public long retries() {
+        return retries;
+    }
+
+    public long quarantines() {
+        return quarantines;
+    }
+
+    /** Total time in quarantine, including the current one */
+    public long quarantineMillis() {
+        return quarantineMillis + (state == State.closed ? 0 : System.currentTimeMillis() - quarantineStart);
+    }
+
+    @Override
+    public String toString() {
+        return "state=" + state + ", failures=" + failures + ", retries=" + retries + ", quarantines=" + quarantines
+                + ", quarantined=" + quarantineMillis()/1000 + "s";
+    }
+}
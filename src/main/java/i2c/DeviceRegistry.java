@@ -0,0 +1,158 @@
+package i2c;
+
+import common.Frame;
+import common.LogstashLogger;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The slaves on the i2c bus, by address, with the response to their hello ("H").
+ *
+ * Only 0x08-0x77 are valid 7-bit addresses. A full scan probes them all, after that the known addresses are
+ * re-probed when a request fails and the other addresses are swept a few at a time, so a newly connected slave is
+ * found without stalling the bus for a complete scan.
+ */
+public class DeviceRegistry {
+    public final static int FIRST_ADDRESS = 0x08;
+    public final static int LAST_ADDRESS = 0x77;
+
+    private final static byte[] HELLO = {'H'};
+
+    private final Bus bus;
+    private final Map<Integer, String> known = new TreeMap<>();
+    private final Map<Integer, Bus.Device> devices = new HashMap<>();
+    private final Frame response = I2CUtil.responseFrame();
+    private int sweepAddress = FIRST_ADDRESS;
+
+    private long busErrors = 0;
+    private long fullScans = 0;
+    private long lastScanMillis = 0;
+    private long sweptAddresses = 0;
+
+    public DeviceRegistry(Bus bus) {
+        this.bus = bus;
+    }
+
+    /** Hello responses of the known slaves by address */
+    public Map<Integer, String> known() {
+        return Collections.unmodifiableMap(known);
+    }
+
+    public Bus.Device device(int address) {
+        return devices.get(address);
+    }
+
+    /** Probes every valid address, the known slaves are replaced by the ones that respond */
+    public void scan() {
+        long start = System.currentTimeMillis();
+        known.clear();
+        for (int address = FIRST_ADDRESS; address <= LAST_ADDRESS; address++) {
+            String response = probe(address);
+            if (response != null) {
+                known.put(address, response);
+            }
+        }
+        fullScans++;
+        lastScanMillis = System.currentTimeMillis() - start;
+        LogstashLogger.INSTANCE.info("Full i2c scan found " + known.size() + " devices in " + lastScanMillis + "ms");
+    }
+
+    /**
+     * Probes the known slaves only. A slave that no longer responds, or responds as another device, is dropped.
+     * @return true when all known slaves responded as before
+     */
+    public boolean reprobe() {
+        boolean unchanged = true;
+        Iterator<Map.Entry<Integer, String>> entries = known.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Integer, String> entry = entries.next();
+            String response = probe(entry.getKey());
+            if (response == null) {
+                busErrors++;
+                LogstashLogger.INSTANCE.warn("Device " + entry.getKey() + " (" + entry.getValue()
+                        + ") no longer responds");
+                entries.remove();
+                unchanged = false;
+            } else if (!response.equals(entry.getValue())) {
+                LogstashLogger.INSTANCE.info("Device " + entry.getKey() + " changed from " + entry.getValue()
+                        + " to " + response);
+                entry.setValue(response);
+                unchanged = false;
+            }
+        }
+        return unchanged;
+    }
+
+    /**
+     * Probes one known slave only. A slave that responds as another device is updated, one that does not respond is
+     * kept, so it can be probed again later.
+     * @return the response, null when the slave did not respond
+     */
+    public String reprobe(int address) {
+        String response = probe(address);
+        if (response == null) {
+            busErrors++;
+        } else if (known.containsKey(address) && !response.equals(known.get(address))) {
+            LogstashLogger.INSTANCE.info("Device " + address + " changed from " + known.get(address) + " to "
+                    + response);
+            known.put(address, response);
+        }
+        return response;
+    }
+
+    /**
+     * Probes the next count unknown addresses, wrapping round at the end of the address range.
+     * @return true when a new slave was found
+     */
+    public boolean sweep(int count) {
+        boolean found = false;
+        for (int i = 0; i < count; i++) {
+            int address = sweepAddress;
+            sweepAddress = address == LAST_ADDRESS ? FIRST_ADDRESS : address + 1;
+            if (known.containsKey(address)) {
+                continue;
+            }
+            sweptAddresses++;
+            String response = probe(address);
+            if (response != null) {
+                LogstashLogger.INSTANCE.info("Found new device " + address + " response " + response);
+                known.put(address, response);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /** Writes a hello and reads the response, null when no slave responds at the address */
+    private String probe(int address) {
+        try {
+            Bus.Device device = devices.get(address);
+            if (device == null) {
+                device = bus.device(address);
+                devices.put(address, device);
+            }
+            device.write(HELLO, 0, HELLO.length);
+            I2CUtil.read(device, response);
+            return response.isEmpty() ? null : response.toString();
+        } catch (IOException ignored) {
+            //No device at this address
+            return null;
+        }
+    }
+
+    public String report() {
+        return "i2c registry devices=" + known.size() + ", full scans=" + fullScans + ", last scan="
+                + lastScanMillis + "ms, swept addresses=" + sweptAddresses + ", bus errors=" + busErrors;
+    }
+
+    public void resetReport() {
+        fullScans = 0;
+        sweptAddresses = 0;
+        busErrors = 0;
+    }
+}
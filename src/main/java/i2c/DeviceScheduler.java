@@ -0,0 +1,157 @@
+package i2c;
+
+import common.LatencyStats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When each i2c slave is due for its next request. Every device has its own period and priority, the polls wait in a
+ * deadline queue and a device that fails is polled less often until it responds again.
+ *
+ * Not thread safe, it is used by the thread that drives the bus (Master).
+ */
+public class DeviceScheduler {
+    public final static int HIGH_PRIORITY = 0;
+    public final static int LOW_PRIORITY = 1;
+
+    /** A failing device is polled at most this far apart */
+    private final static long MAX_BACKOFF_MS = 5*60*1000;
+
+    public static class Poll {
+        public final String deviceId;
+        public final I2CMaster master;
+        public final long periodMs;
+        public final int priority;
+        public final CircuitBreaker breaker = new CircuitBreaker();
+
+        private long due;
+        private int failures = 0;
+        private long startNanos;
+
+        /** Duration of the request */
+        private final LatencyStats latency;
+        /** How late the request started compared to when it was due */
+        private final LatencyStats jitter;
+
+        Poll(String deviceId, I2CMaster master, long periodMs, int priority, long due) {
+            this.deviceId = deviceId;
+            this.master = master;
+            this.periodMs = periodMs;
+            this.priority = priority;
+            this.due = due;
+            latency = new LatencyStats("i2c poll " + deviceId);
+            jitter = new LatencyStats("i2c poll jitter " + deviceId);
+        }
+
+        public int failures() {
+            return failures;
+        }
+
+        private long delay() {
+            return failures == 0 ? periodMs : Math.min(periodMs << Math.min(failures, 20), MAX_BACKOFF_MS);
+        }
+    }
+
+    private final PriorityQueue<Poll> queue = new PriorityQueue<>((a, b) -> a.due != b.due
+            ? Long.compare(a.due, b.due) : Integer.compare(a.priority, b.priority));
+    private final Map<String, Poll> polls = new HashMap<>();
+
+    /** Adds a device to be polled from now on, a device that is already scheduled keeps its schedule */
+    public void register(String deviceId, I2CMaster master, long periodMs, int priority) {
+        Poll poll = polls.get(deviceId);
+        if (poll != null && poll.master == master && poll.periodMs == periodMs && poll.priority == priority) {
+            return;
+        }
+        if (poll != null) {
+            queue.remove(poll);
+        }
+        poll = new Poll(deviceId, master, periodMs, priority, System.currentTimeMillis());
+        polls.put(deviceId, poll);
+        queue.add(poll);
+    }
+
+    /** Stops polling the devices that are not in deviceIds */
+    public void retain(Collection<String> deviceIds) {
+        Iterator<Map.Entry<String, Poll>> entries = polls.entrySet().iterator();
+        while (entries.hasNext()) {
+            Poll poll = entries.next().getValue();
+            if (!deviceIds.contains(poll.deviceId)) {
+                queue.remove(poll);
+                entries.remove();
+            }
+        }
+    }
+
+    public Collection<Poll> polls() {
+        return Collections.unmodifiableCollection(polls.values());
+    }
+
+    public boolean isEmpty() {
+        return polls.isEmpty();
+    }
+
+    /** Time of the earliest poll, Long.MAX_VALUE when there is nothing to poll */
+    public long nextDue() {
+        Poll poll = queue.peek();
+        return poll == null ? Long.MAX_VALUE : poll.due;
+    }
+
+    /**
+     * Waits until the earliest poll is due, but no longer than until the given time, and takes all polls that are
+     * due then, in order of priority. The polls are taken off the queue until they are done().
+     */
+    public List<Poll> next(long until) throws InterruptedException {
+        long wait = Math.min(nextDue(), until) - System.currentTimeMillis();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+        List<Poll> due = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        while (!queue.isEmpty() && queue.peek().due <= now) {
+            Poll poll = queue.poll();
+            poll.jitter.record(TimeUnit.MILLISECONDS.toNanos(now - poll.due));
+            poll.startNanos = System.nanoTime();
+            due.add(poll);
+        }
+        due.sort((a, b) -> Integer.compare(a.priority, b.priority));
+        return due;
+    }
+
+    /** Puts a poll back in the queue, after its period or after a backoff when it failed */
+    public void done(Poll poll, boolean success) {
+        poll.latency.since(poll.startNanos);
+        poll.failures = success ? 0 : poll.failures + 1;
+        long now = System.currentTimeMillis();
+        // Keep a fixed rate, unless the device is so late that it would be polled twice in a row
+        poll.due = success && poll.due + poll.periodMs > now ? poll.due + poll.periodMs : now + poll.delay();
+        if (polls.get(poll.deviceId) == poll) {
+            queue.add(poll);
+        }
+    }
+
+    /** Puts a poll back in the queue after its period, when it was not requested for a reason outside the device */
+    public void skip(Poll poll) {
+        poll.due = System.currentTimeMillis() + poll.delay();
+        if (polls.get(poll.deviceId) == poll) {
+            queue.add(poll);
+        }
+    }
+
+    public List<String> report() {
+        List<String> report = new ArrayList<>();
+        for (Poll poll : polls.values()) {
+            report.add(poll.latency + ", " + poll.jitter + ", " + poll.breaker);
+            poll.latency.reset();
+            poll.jitter.reset();
+        }
+        return report;
+    }
+}
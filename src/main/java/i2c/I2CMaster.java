@@ -1,7 +1,5 @@
 package i2c;
 
-import com.pi4j.io.i2c.I2CDevice;
-
 import java.util.Map;
 
 /**
@@ -14,5 +12,5 @@ import java.util.Map;
 public interface I2CMaster {
 
     public boolean request(String deviceId);
-    public Map<String, I2CDevice> devices();
+    public Map<String, Bus.Device> devices();
 }
@@ -1,21 +1,48 @@
 package i2c;
 
-import com.pi4j.io.i2c.I2CDevice;
+import common.Frame;
 
 import java.io.IOException;
 
 public class I2CUtil {
-    public static String byteToString(I2CDevice device) throws IOException {
-        String retval = "";
+    /** The slaves always answer with a full Wire buffer, the unused bytes are 0 or 0xFF */
+    public final static int RESPONSE_SIZE = 32;
 
-        byte res[] = new byte[32];
-        device.read(res, 0, 32);
-        for (byte b : res) {
-            if (b > 0) {
-                retval += (char)(b & 0xFF);
+    /** A response buffer for read(), reuse it for every request */
+    public static Frame responseFrame() {
+        return new Frame(RESPONSE_SIZE);
+    }
+
+    /**
+     * Reads a text response into the frame, without the padding bytes. Nothing is allocated, so read the fields from
+     * the frame before it is used for the next response.
+     */
+    public static Frame read(Bus.Device device, Frame response) throws IOException {
+        return read(device, response, false);
+    }
+
+    /**
+     * Reads a response, a binary one (see BinaryFrame) is left as it is. Only pass binary for a device that
+     * advertised binary frames in its hello, the padding of an empty text response looks like a frame start.
+     */
+    public static Frame read(Bus.Device device, Frame response, boolean binary) throws IOException {
+        byte[] buffer = response.buffer();
+        int size = device.read(buffer, 0, Math.min(RESPONSE_SIZE, buffer.length));
+        if (binary) {
+            response.setLength(Math.max(size, 0));
+            return response;
+        }
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            if (buffer[i] > 0) {
+                buffer[length++] = buffer[i];
             }
         }
+        response.setLength(length);
+        return response;
+    }
 
-        return retval;
+    public static String byteToString(Bus.Device device) throws IOException {
+        return read(device, responseFrame()).toString();
     }
 }
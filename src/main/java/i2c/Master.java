@@ -1,127 +1,315 @@
 package i2c;
 
-import com.pi4j.io.i2c.I2CBus;
-import com.pi4j.io.i2c.I2CDevice;
-import com.pi4j.io.i2c.I2CFactory;
 import com.pi4j.io.i2c.I2CFactory.UnsupportedBusNumberException;
 import furnace.I2CFurnaceMaster;
 
-import org.apache.commons.lang3.StringUtils;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import common.BinaryFrame;
+import common.LatencyStats;
 import common.Properties;
 import common.LogstashLogger;
+import common.RedisPool;
 import valve.I2CValveMaster;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
 /**
  * Created by Jaap on 20-1-2018.
  */
 public class Master {
 
+    private final static int SWEEP_ADDRESSES = 16;
+    private final static long REPORT_INTERVAL_MS = 10*60*1000;
+    /** Sweep for new devices and check the bus this often, the devices have their own periods */
+    private final static long HOUSEKEEPING_MS = 30000;
+    private final static int MAX_RETRIES = 2;
+    private final static long RETRY_PAUSE_MS = 50;
+    private final static int HEALTH_TTL = 120;
+
+    private final Bus bus;
     private final I2CValveMaster valve;
     private final I2CFurnaceMaster furnace;
-    private final I2CBus bus;
+    private final DeviceRegistry registry;
+    private final DeviceScheduler scheduler = new DeviceScheduler();
+    /** The bus address of each device id */
+    private final Map<String, Integer> addresses = new HashMap<>();
+    private long furnacePeriodMs = 0;
+    private long valvePeriodMs = 0;
     private long lastSuccessTime = 0;
+    private long lastReport = System.currentTimeMillis();
+    /** Duration of the valve group requests by the number of groups, the monitor round trips grow with the groups */
+    private final Map<Integer, LatencyStats> cycleTime = new TreeMap<>();
 
     public Master() throws IOException, UnsupportedBusNumberException {
-        Properties prop = new Properties();
+        this(pi4jBus(), new I2CValveMaster(Properties.get().monitorIp, Properties.get().monitorPort)
+                , new I2CFurnaceMaster(Properties.get().hasAuxilaryTemperature));
+        LogstashLogger.INSTANCE.info("Started i2c master");
+    }
+
+    public Master(Bus bus, I2CValveMaster valve, I2CFurnaceMaster furnace) {
         lastSuccessTime = new Date().getTime();
-        valve = new I2CValveMaster(prop.monitorIp, prop.monitorPort);
-        furnace = new I2CFurnaceMaster(prop.hasAuxilaryTemperature);
+        this.bus = bus;
+        this.valve = valve;
+        this.furnace = furnace;
+        registry = new DeviceRegistry(bus);
+    }
+
+    private static Bus pi4jBus() throws IOException, UnsupportedBusNumberException {
         try {
-            bus = I2CFactory.getInstance(I2CBus.BUS_1);
-            LogstashLogger.INSTANCE.info("Started i2c master");
+            return new Pi4jBus();
         } catch (UnsupportedBusNumberException | IOException e) {
             LogstashLogger.INSTANCE.fatal("Cannot connect to the i2c bus.", e);
             throw e;
         }
     }
 
-    public void run()  {
+    /** Overrides the poll periods of the Properties, zero keeps them */
+    public void setPollPeriods(long furnaceMs, long valveMs) {
+        furnacePeriodMs = furnaceMs;
+        valvePeriodMs = valveMs;
+    }
+
+    public void run() {
+        run(Long.MAX_VALUE);
+    }
+
+    /** Polls the devices until given time */
+    public void run(long until)  {
         scanDevices();
-        while (true) {
-            if (valve.devices().size() + furnace.devices().size() == 0) {
-                if (new Date().getTime() - lastSuccessTime > 120000) {
-                    LogstashLogger.INSTANCE.error("There are no devices connected to this master, rebooting");
-                    try {
-                        Runtime.getRuntime().exec("sudo reboot");
-                    } catch (IOException e) {
-                        LogstashLogger.INSTANCE.fatal("Failed to reboot.", e);
-                    }
-                }
-            } else {
+        long housekeeping = System.currentTimeMillis() + HOUSEKEEPING_MS;
+        while (System.currentTimeMillis() < until) {
+            List<DeviceScheduler.Poll> due;
+            try {
+                due = scheduler.next(Math.min(housekeeping, until));
+            } catch (InterruptedException e) {
+                //ignore
+                continue;
+            }
+            if (!due.isEmpty()) {
                 lastSuccessTime = new Date().getTime();
-                for (String deviceId : valve.devices().keySet()) {
-                    if (!valve.request(deviceId)) {
-                        scanDevices();
-                        break;
-                    }
-                }
-                for (String deviceId : furnace.devices().keySet()) {
-                    if (!furnace.request(deviceId)) {
-                        scanDevices();
-                        break;
-                    }
+                poll(due);
+            }
+            if (System.currentTimeMillis() >= housekeeping) {
+                housekeeping();
+                housekeeping = System.currentTimeMillis() + HOUSEKEEPING_MS;
+            }
+        }
+    }
+
+    /** Figures of the registry, the devices and the valve group requests since the previous report */
+    public List<String> report() {
+        List<String> report = new ArrayList<>();
+        report.add(registry.report());
+        registry.resetReport();
+        report.addAll(scheduler.report());
+        for (LatencyStats cycle : cycleTime.values()) {
+            report.add(cycle.toString());
+        }
+        cycleTime.clear();
+        return report;
+    }
+
+    /**
+     * Requests the due devices, the valve groups together so their monitor round trips overlap. A failed i2c transfer
+     * is retried a few times, a quarantined device is only probed at its own address. A valve group without a
+     * directive, because the monitor failed, is skipped until its next period; that is no failure of the device.
+     */
+    private void poll(List<DeviceScheduler.Poll> due) {
+        Map<String, DeviceScheduler.Poll> valveGroups = new LinkedHashMap<>();
+        for (DeviceScheduler.Poll poll : due) {
+            if (!poll.breaker.allowsRequest() && !probe(poll)) {
+                scheduler.done(poll, false);
+            } else if (poll.master == valve) {
+                valveGroups.put(poll.deviceId, poll);
+            } else {
+                done(poll, poll.master.request(poll.deviceId)
+                        || retry(poll, () -> poll.master.request(poll.deviceId)));
+            }
+        }
+        if (!valveGroups.isEmpty()) {
+            long start = System.nanoTime();
+            boolean monitorFailed = false;
+            for (Map.Entry<String, Future<String>> entry : valve.directives(valveGroups.keySet()).entrySet()) {
+                DeviceScheduler.Poll poll = valveGroups.get(entry.getKey());
+                // Once the monitor failed, only the directives it already sent are waited for
+                String directive = monitorFailed && !entry.getValue().isDone() ? null
+                        : valve.directive(poll.deviceId, entry.getValue());
+                if (directive == null) {
+                    entry.getValue().cancel(true);
+                    monitorFailed = true;
+                    scheduler.skip(poll);
+                } else {
+                    done(poll, valve.transfer(poll.deviceId, directive)
+                            || retry(poll, () -> valve.transfer(poll.deviceId, directive)));
                 }
             }
+            cycleTime.computeIfAbsent(valveGroups.size(), groups -> new LatencyStats("i2c requests of " + groups
+                    + " valve groups")).since(start);
+        }
+    }
+
+    /** Retries a failed i2c request */
+    private boolean retry(DeviceScheduler.Poll poll, BooleanSupplier request) {
+        // A device that is already known to fail gets no retries, just the backoff
+        if (poll.breaker.state() != CircuitBreaker.State.closed) {
+            return false;
+        }
+        for (int i = 0; i < MAX_RETRIES; i++) {
             try {
-                Thread.sleep(30000);
-                if (deviceCount() != (valve.devices().size() + furnace.devices().size())) {
-                    scanDevices();
-                }
+                Thread.sleep(RETRY_PAUSE_MS);
             } catch (InterruptedException e) {
-                //ignore
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            poll.breaker.retry();
+            if (request.getAsBoolean()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void done(DeviceScheduler.Poll poll, boolean success) {
+        if (success) {
+            if (poll.breaker.state() != CircuitBreaker.State.closed) {
+                LogstashLogger.INSTANCE.info("Device " + poll.deviceId + " is back in service, " + poll.breaker);
+            }
+            poll.breaker.success();
+        } else if (poll.breaker.failure()) {
+            LogstashLogger.INSTANCE.warn("Device " + poll.deviceId + " quarantined after failing "
+                    + CircuitBreaker.FAILURE_THRESHOLD + " times");
+        }
+        scheduler.done(poll, success);
+    }
+
+    /** Probes the address of a quarantined device, it may be requested when it still responds as before */
+    private boolean probe(DeviceScheduler.Poll poll) {
+        Integer address = addresses.get(poll.deviceId);
+        if (address == null) {
+            return false;
+        }
+        String hello = registry.known().get(address);
+        String response = registry.reprobe(address);
+        if (response != null && !response.equals(hello)) {
+            // Another device at this address
+            registerDevices();
+            return false;
+        }
+        poll.breaker.probed(response != null);
+        return response != null;
+    }
+
+    /** Failures, retries and quarantine of every device, as i2c.[device].[counter] */
+    private void publishHealth() {
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            Pipeline pipe = jedis.pipelined();
+            for (DeviceScheduler.Poll poll : scheduler.polls()) {
+                String prefix = "i2c." + poll.deviceId + ".";
+                pipe.setex(prefix + "state", HEALTH_TTL, poll.breaker.state().name());
+                pipe.setex(prefix + "failures", HEALTH_TTL, Long.toString(poll.breaker.failures()));
+                pipe.setex(prefix + "retries", HEALTH_TTL, Long.toString(poll.breaker.retries()));
+                pipe.setex(prefix + "quarantines", HEALTH_TTL, Long.toString(poll.breaker.quarantines()));
+                pipe.setex(prefix + "quarantineSeconds", HEALTH_TTL
+                        , Long.toString(poll.breaker.quarantineMillis()/1000));
             }
+            pipe.sync();
+        } catch (Exception e) {
+            //Ignore, as this is just for information
         }
     }
 
-    public int deviceCount() {
-        int retval = 0;
-        for (int i = 0; i < 255; i++) {
+    private void housekeeping() {
+        // Only a real bus can be helped by a reboot
+        if (scheduler.isEmpty() && new Date().getTime() - lastSuccessTime > 120000 && bus instanceof Pi4jBus) {
+            LogstashLogger.INSTANCE.error("There are no devices connected to this master, rebooting");
             try {
-                I2CDevice device = bus.getDevice(i);
-                device.write("H".getBytes()); // "H" is a hello message
-                if (StringUtils.isNotEmpty(I2CUtil.byteToString(device))) {
-                    retval++;
-                }
-            } catch (IOException ignored) {
-                //Device does not exist, ignore
+                Runtime.getRuntime().exec("sudo reboot");
+            } catch (IOException e) {
+                LogstashLogger.INSTANCE.fatal("Failed to reboot.", e);
             }
         }
-        return retval;
+        if (registry.known().isEmpty()) {
+            scanDevices();
+        } else if (registry.sweep(SWEEP_ADDRESSES)) {
+            registerDevices();
+        }
+        publishHealth();
+        if (System.currentTimeMillis() - lastReport > REPORT_INTERVAL_MS) {
+            for (String line : report()) {
+                LogstashLogger.INSTANCE.info(line);
+            }
+            lastReport = System.currentTimeMillis();
+        }
     }
 
     public void scanDevices() {
+        registry.scan();
+        registerDevices();
+    }
+
+    private void registerDevices() {
         valve.devices().clear();
+        valve.binaryDevices().clear();
         furnace.devices().clear();
-        for (int i = 0; i < 255; i++) {
-            try {
-                I2CDevice device = bus.getDevice(i); //throws an exception when the device does not exist
-                device.write("H".getBytes());
-                String response = I2CUtil.byteToString(device);
-                LogstashLogger.INSTANCE.info("Device " + i + " response " + response);
-                String splittedResponse[] = response.split(":");
-                if (response.startsWith("F:") && splittedResponse.length > 2) {
-                    //deprecate
-                    furnace.devices().put(splittedResponse[1], device);
-                } else if (response.startsWith("H:")) {
-                    furnace.devices().put(splittedResponse[1], device);
-                } else if (response.startsWith("V") && response.contains("]")) {
-                    valve.devices().put(response.substring(1, response.indexOf("]")), device);
-                } else {
-                    LogstashLogger.INSTANCE.error("Unrecognized device " + response);
+        furnace.binaryDevices().clear();
+        addresses.clear();
+        for (Map.Entry<Integer, String> entry : registry.known().entrySet()) {
+            Bus.Device device = registry.device(entry.getKey());
+            String response = entry.getValue();
+            LogstashLogger.INSTANCE.info("Device " + entry.getKey() + " response " + response);
+            String splittedResponse[] = response.split(":");
+            if (response.startsWith("F:") && splittedResponse.length > 2) {
+                //deprecate
+                furnace.devices().put(splittedResponse[1], device);
+                addresses.put(splittedResponse[1], entry.getKey());
+            } else if (response.startsWith("H:")) {
+                furnace.devices().put(splittedResponse[1], device);
+                addresses.put(splittedResponse[1], entry.getKey());
+                if (BinaryFrame.advertised(response) > 0) {
+                    furnace.binaryDevices().add(splittedResponse[1]);
+                }
+            } else if (response.startsWith("V") && response.contains("]")) {
+                valve.devices().put(response.substring(1, response.indexOf("]")), device);
+                addresses.put(response.substring(1, response.indexOf("]")), entry.getKey());
+                if (BinaryFrame.advertised(response) > 0) {
+                    valve.binaryDevices().add(response.substring(1, response.indexOf("]")));
                 }
-            } catch (IOException ignored) {
+            } else {
+                LogstashLogger.INSTANCE.error("Unrecognized device " + response);
             }
         }
-        try (Jedis jedis = new Jedis("localhost")) {
+        Properties prop = Properties.get();
+        for (String deviceId : furnace.devices().keySet()) {
+            scheduler.register(deviceId, furnace, furnacePeriodMs > 0 ? furnacePeriodMs
+                    : TimeUnit.SECONDS.toMillis(prop.furnacePollPeriod), DeviceScheduler.HIGH_PRIORITY);
+        }
+        for (String deviceId : valve.devices().keySet()) {
+            scheduler.register(deviceId, valve, valvePeriodMs > 0 ? valvePeriodMs
+                    : TimeUnit.SECONDS.toMillis(prop.valvePollPeriod), DeviceScheduler.LOW_PRIORITY);
+        }
+        Set<String> deviceIds = new HashSet<>(furnace.devices().keySet());
+        deviceIds.addAll(valve.devices().keySet());
+        scheduler.retain(deviceIds);
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
             jedis.set("valveGroupCount", Integer.toString(valve.devices().size()));
             jedis.set("furnaceCount", Integer.toString(furnace.devices().size()));
         } catch (Exception e) {
             //Ignore, as this is just for information
         }
-        LogstashLogger.INSTANCE.info("Scanned " + (valve.devices().size() + furnace.devices().size()) + " devices");
+        LogstashLogger.INSTANCE.info("Registered " + (valve.devices().size() + furnace.devices().size())
+                + " devices, " + RedisPool.INSTANCE.metrics());
     }
 }
@@ -0,0 +1,40 @@
+package i2c;
+
+import com.pi4j.io.i2c.I2CBus;
+import com.pi4j.io.i2c.I2CDevice;
+import com.pi4j.io.i2c.I2CFactory;
+import com.pi4j.io.i2c.I2CFactory.UnsupportedBusNumberException;
+
+import java.io.IOException;
+
+/**
+ * The i2c bus of the Raspberry Pi, through pi4j.
+ */
+public class Pi4jBus implements Bus {
+    private final I2CBus bus;
+
+    public Pi4jBus() throws IOException, UnsupportedBusNumberException {
+        bus = I2CFactory.getInstance(I2CBus.BUS_1);
+    }
+
+    @Override
+    public Device device(int address) throws IOException {
+        I2CDevice device = bus.getDevice(address);
+        return new Device() {
+            @Override
+            public int address() {
+                return address;
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int size) throws IOException {
+                device.write(buffer, offset, size);
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int size) throws IOException {
+                return device.read(buffer, offset, size);
+            }
+        };
+    }
+}
@@ -0,0 +1,165 @@
+package i2c;
+
+import common.BinaryFrame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An i2c bus with simulated slaves, to run the Master without a Raspberry Pi (see the "i2cload" command of Main).
+ *
+ * Every transfer takes the configured latency, and fails with an IOException at the configured error rate, for the
+ * whole bus or for one address. Slaves can be added and removed while the Master runs, like plugging them in and out.
+ */
+public class SimulatedBus implements Bus {
+
+    /** A simulated slave, it answers a write with the bytes the next read returns */
+    public interface Slave {
+        byte[] respond(byte[] request, int length);
+    }
+
+    private final Map<Integer, Slave> slaves = new ConcurrentHashMap<>();
+    private final Map<Integer, Double> errorRates = new ConcurrentHashMap<>();
+    private final Random random;
+    private volatile long latencyNanos = 0;
+    private volatile double errorRate = 0.0;
+
+    private final AtomicLong transfers = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public SimulatedBus(long seed) {
+        random = new Random(seed);
+    }
+
+    public SimulatedBus add(int address, Slave slave) {
+        slaves.put(address, slave);
+        return this;
+    }
+
+    public void remove(int address) {
+        slaves.remove(address);
+    }
+
+    /** Time each write and each read takes */
+    public SimulatedBus latency(long micros) {
+        latencyNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+        return this;
+    }
+
+    /** Fraction of the transfers that fail */
+    public SimulatedBus errorRate(double rate) {
+        errorRate = rate;
+        return this;
+    }
+
+    /** Fraction of the transfers to one address that fail, on top of the bus error rate */
+    public SimulatedBus errorRate(int address, double rate) {
+        errorRates.put(address, rate);
+        return this;
+    }
+
+    public long transfers() {
+        return transfers.get();
+    }
+
+    public long errors() {
+        return errors.get();
+    }
+
+    @Override
+    public Device device(int address) {
+        return new Device() {
+            private byte[] response = new byte[0];
+
+            @Override
+            public int address() {
+                return address;
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int size) throws IOException {
+                Slave slave = transfer(address);
+                response = slave.respond(Arrays.copyOfRange(buffer, offset, offset + size), size);
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int size) throws IOException {
+                transfer(address);
+                // The slaves pad their Wire buffer, as the Arduinos do
+                Arrays.fill(buffer, offset, offset + size, (byte)0xFF);
+                System.arraycopy(response, 0, buffer, offset, Math.min(size, response.length));
+                return size;
+            }
+        };
+    }
+
+    private Slave transfer(int address) throws IOException {
+        transfers.incrementAndGet();
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+        Slave slave = slaves.get(address);
+        double rate = errorRate + errorRates.getOrDefault(address, 0.0);
+        boolean failed;
+        synchronized (random) {
+            failed = rate > 0.0 && random.nextDouble() < rate;
+        }
+        if (slave == null || failed) {
+            errors.incrementAndGet();
+            throw new IOException("No response from simulated slave " + address);
+        }
+        return slave;
+    }
+
+    /** A furnace controller that reports the boiler on at about 63 degrees, with an auxiliary temperature */
+    public static Slave furnace(String name, boolean binary) {
+        return new Slave() {
+            private int reading = 0;
+
+            @Override
+            public byte[] respond(byte[] request, int length) {
+                if (length == 1 && request[0] == 'H') {
+                    return ascii("H:" + name + (binary ? ":B" + BinaryFrame.VERSION : ""));
+                }
+                reading++;
+                int boiler = 6300 + reading % 50;
+                if (length > 0 && BinaryFrame.isBinary(request[0])) {
+                    byte[] payload = {1, (byte)(boiler >> 8), (byte)boiler, 0x04, (byte)0xB0, 0};
+                    byte[] frame = new byte[BinaryFrame.HEADER_SIZE + payload.length + 1];
+                    BinaryFrame.write(frame, BinaryFrame.TYPE_FURNACE_STATE, request[2] & 0xFF, payload
+                            , payload.length);
+                    return frame;
+                }
+                return ascii("1:" + boiler/100.0 + ":12.0:0");
+            }
+        };
+    }
+
+    /** A valve group that answers every directive with it between brackets */
+    public static Slave valveGroup(String id, boolean binary) {
+        return (request, length) -> {
+            if (length == 1 && request[0] == 'H') {
+                return ascii("V" + id + "]" + (binary ? ":B" + BinaryFrame.VERSION : ""));
+            }
+            if (length > 0 && BinaryFrame.isBinary(request[0])) {
+                byte[] status = ascii("[" + new String(request, BinaryFrame.HEADER_SIZE
+                        , (request[3] & 0xFF), StandardCharsets.US_ASCII) + "]");
+                byte[] frame = new byte[BinaryFrame.HEADER_SIZE + status.length + 1];
+                BinaryFrame.write(frame, BinaryFrame.TYPE_VALVE_STATUS, request[2] & 0xFF, status, status.length);
+                return frame;
+            }
+            return ascii("[" + new String(request, 0, length, StandardCharsets.US_ASCII) + "]");
+        };
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -22,7 +22,7 @@ public class DallasTemperature {
     }
 
     public void send(Double value) {
-        Properties properties = new Properties();
+        Properties properties = Properties.get();
         String furnaceRequest = "http://" + properties.monitorIp + ":"
                 + properties.monitorPort + "/rest/heating/temperature/"
                 + properties.deviceName.replace("sensor_", "") + "/"
@@ -1,11 +1,11 @@
 package solar;
 
 import common.LogstashLogger;
-import redis.clients.jedis.Jedis;
 
 import java.io.IOException;
+import java.time.Clock;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.function.LongPredicate;
 
 /**
  * Solar boiler control
@@ -42,7 +42,11 @@ import java.util.Date;
  * are switched to recycle mode. The solar pump is switched off when Tin exceeds 120C.
  */
 public class Controller implements Runnable {
-    private final Jedis jedis;
+    private final ControllerStore store;
+    private final Clock clock;
+    private final LongPredicate sunShining;
+    private final ControllerSettings settings;
+    private final boolean logging;
 
     private double TflowIn, TflowOut, stateStartTflowOut;
     private Double Ttop200 = null;
@@ -51,83 +55,102 @@ public class Controller implements Runnable {
     private final static int STATE_CHANGE_GRACE_MILLISECONDS = 2*60*1000;
 
     private final static double MAX_FLOWOUT_TEMP = 95.0;
-    private final static double LEGIONELLA_TEMP = 60.0;
     private final static double MAX_SMALL_BOILER_TEMP = 70.0;
 
     private final static long OVERHEAT_TIMEOUT_MS = 30*60*1000; //Set to 30 minutes
 
-    private final static double RECYCLE_MAX_TEMP = 40.0;
     /** How many miliseconds should control stay in recycle? */
     private long recycleTimeMS() {
         if (isWinter()) {
-            return 30*60*1000;
+            return settings.winterRecycleTimeMs;
         }
-        return 10*60*1000;
+        return settings.recycleTimeMs;
     }
 
-    private final static double SWAP_BOILER_TEMP_RISE = 5.0;
-    private final static double MIN_FLOW_DELTA = 0.5;
-    private final static double LARGE_FLOW_DELTA_THRESHOLD = 2.0; //Meaning, sun is shining strong
-    private final static double MIN_SOLAR_PIPE_TEMP = 20.0;
-    private final static double BOILER_TEMP_CONTROL_OFFSET = 5.0; //use boiler temp for control if temp diff is larger then offset
-
     public final static double SLOPE_WINDOW_HR = 0.5;
     public final static int MIN_OBSERVATIONS = 20;
 
     private SolarState currentState;
+    private Long lastStateChangeTime;
+    private boolean stateWritten = false;
+    private final ControllerInputs inputs;
 
     public Controller() {
-        jedis = new Jedis("localhost");
-        if (jedis.exists("solar.state")) {
-            currentState = SolarState.valueOf(jedis.get("solar.state"));
+        this(new RedisControllerStore(), Clock.systemDefaultZone(), time -> new Sun().shining(time)
+                , ControllerSettings.DEFAULT, true);
+    }
+
+    /**
+     * The store is closed at the end of run(), or here when its inputs cannot be read. The Simulator passes its own
+     * clock, store, settings and the sun positions of the recorded history, and no logging.
+     */
+    public Controller(ControllerStore store, Clock clock, LongPredicate sunShining, ControllerSettings settings
+            , boolean logging) {
+        this.store = store;
+        this.clock = clock;
+        this.sunShining = sunShining;
+        this.settings = settings;
+        this.logging = logging;
+        try {
+            inputs = store.inputs();
+        } catch (RuntimeException e) {
+            store.close();
+            throw e;
         }
+        currentState = inputs.state;
+        lastStateChangeTime = inputs.lastStateChange;
     }
+
     @Override
     public void run() {
         try {
-            readTemperatures();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } //todo do the clean up (probably stop controlling
-//        pipeTSlope();
-        overheatControl();
-        smallBoilerHeatControl();
-        if (defrostCheck()) {
-            stateDefrost();
-        }
+            try {
+                readTemperatures();
+            } catch (IOException e) {
+                if (logging) {
+                    e.printStackTrace();
+                }
+            } //todo do the clean up (probably stop controlling
+            overheatControl();
+            smallBoilerHeatControl();
+            if (defrostCheck()) {
+                stateDefrost();
+            }
 
-        if (currentState == SolarState.defrost) {
-            checkDefrost();
-        } else if (!new Sun().shining()) {
-            stateSunset();
-        } else if (currentState == SolarState.overheat) {
-            resetOverheat();
-        } else {
-            control();
+            if (currentState == SolarState.defrost) {
+                checkDefrost();
+            } else if (!sunShining.test(clock.millis())) {
+                stateSunset();
+            } else if (currentState == SolarState.overheat) {
+                resetOverheat();
+            } else {
+                control();
+            }
+        } finally {
+            store.close();
         }
-        jedis.close();
     }
 
     private void control() {
         long lastStateChange = 0;
-        if (jedis.exists("solar.lastStateChange")) {
-            lastStateChange = new Date().getTime() - Long.parseLong(jedis.get("solar.lastStateChange"));
+        if (lastStateChangeTime != null) {
+            lastStateChange = clock.millis() - lastStateChangeTime;
         }
-        if (lastStateChange == 0) {
+        if (lastStateChangeTime == null) {
             stateStartup();
         } else if (lastStateChange > STATE_CHANGE_GRACE_MILLISECONDS) {
             if (currentState == SolarState.startup) {
-                if (TflowIn > MIN_SOLAR_PIPE_TEMP) {
+                if (TflowIn > settings.minSolarPipeTemp) {
                     stateLargeBoiler();
                 } else {
                     stateRecycleTimeout();
                 }
             } else if (currentState == SolarState.recycle) {
-                if (TflowOut > (stateStartTflowOut + 4.0) && TflowIn > MIN_SOLAR_PIPE_TEMP) {
+                if (TflowOut > (stateStartTflowOut + 4.0) && TflowIn > settings.minSolarPipeTemp) {
                     // Recycle is heating up, try again
                     stateLargeBoiler();
-                } else if (lastStateChange > recycleTimeMS() && TflowOut < RECYCLE_MAX_TEMP) {
-                   if (Tbottem500 != null && TflowIn > (Tbottem500 + BOILER_TEMP_CONTROL_OFFSET)) {
+                } else if (lastStateChange > recycleTimeMS() && TflowOut < settings.recycleMaxTemp) {
+                   if (Tbottem500 != null && TflowIn > (Tbottem500 + settings.boilerTempControlOffset)) {
                        stateLargeBoiler();
                    } else {
                        stateRecycleTimeout();
@@ -137,18 +160,18 @@ public class Controller implements Runnable {
                 if (lastStateChange > recycleTimeMS()) {
                     stateRecycle();
                 }
-            } else if (TflowIn > TflowOut + MIN_FLOW_DELTA) {
+            } else if (TflowIn > TflowOut + settings.minFlowDelta) {
                 // Heat is being exchanged now, what to do?
                 // Heat up 'legionella smart'
-                if (currentState == SolarState.boiler200 && TflowOut < LEGIONELLA_TEMP
-                        && TflowIn - TflowOut > LARGE_FLOW_DELTA_THRESHOLD) {
+                if (currentState == SolarState.boiler200 && TflowOut < settings.legionellaTemp
+                        && TflowIn - TflowOut > settings.largeFlowDeltaThreshold) {
                     // Prefer small boiler to avoid growth of Legionella
                     // So, do nothing now
-                } else if (currentState == SolarState.boiler500 && Ttop200 != null && Ttop200 > LEGIONELLA_TEMP
-                        && TflowOut < LEGIONELLA_TEMP && TflowIn - TflowOut > LARGE_FLOW_DELTA_THRESHOLD) {
+                } else if (currentState == SolarState.boiler500 && Ttop200 != null && Ttop200 > settings.legionellaTemp
+                        && TflowOut < settings.legionellaTemp && TflowIn - TflowOut > settings.largeFlowDeltaThreshold) {
                     // Prefer to stick to the large boiler to reach Legionella entirely bcs the small boiler is already
                     // at a clean temperature
-                } else if (stateStartTflowOut + SWAP_BOILER_TEMP_RISE < TflowOut) {
+                } else if (stateStartTflowOut + settings.swapBoilerTempRise < TflowOut) {
                     //Time to switch to another boiler
                     if (currentState == SolarState.boiler200) {
                         stateLargeBoiler();
@@ -165,7 +188,7 @@ public class Controller implements Runnable {
                 } else if (currentState == SolarState.boiler500) {
                     stateRecycle();
                 } else {
-                    LogstashLogger.INSTANCE.error("Unexpected solar state " + currentState
+                    error("Unexpected solar state " + currentState
                             + " I will go into recycle mode");
                     stateRecycle();
                 }
@@ -182,14 +205,14 @@ public class Controller implements Runnable {
     /** From the small boiler water exits to the user. The Tout temperature must be limited */
     private void smallBoilerHeatControl() {
         if (currentState == SolarState.boiler200 && Ttop200 != null && Ttop200 > MAX_SMALL_BOILER_TEMP) {
-            LogstashLogger.INSTANCE.info("Switching off small boiler to prevent overheated user water");
+            info("Switching off small boiler to prevent overheated user water");
             stateLargeBoiler();
         }
     }
 
     private void resetOverheat() {
-        if (new Date().getTime() - Long.parseLong(jedis.get("solar.lastStateChange")) > OVERHEAT_TIMEOUT_MS) {
-            LogstashLogger.INSTANCE.info("Ending overheat status, switching to boiler500");
+        if (lastStateChangeTime == null || clock.millis() - lastStateChangeTime > OVERHEAT_TIMEOUT_MS) {
+            info("Ending overheat status, switching to boiler500");
             stateLargeBoiler();
         }
     }
@@ -204,23 +227,22 @@ public class Controller implements Runnable {
         if (pipeTemperature > TflowOut) {
             pipeTemperature = TflowOut;
         }
-        if (jedis.exists("auxiliary.temperature")) {
-            double auxTemperature = Double.parseDouble(jedis.get("auxiliary.temperature"));
-            return pipeTemperature + auxTemperature < 5.0;
+        if (inputs.auxiliaryTemperature != null) {
+            return pipeTemperature + inputs.auxiliaryTemperature < 5.0;
         }
 
         return isWinterNight() && pipeTemperature < 10.0;
     }
 
     private boolean isWinterNight() {
-        Calendar now = Calendar.getInstance();
+        Calendar now = now();
         return isWinter()
                 && now.get(Calendar.HOUR_OF_DAY) < 7
                 && now.get(Calendar.HOUR_OF_DAY) > 21;
     }
 
     private boolean isWinter() {
-        Calendar now = Calendar.getInstance();
+        Calendar now = now();
         return (now.get(Calendar.MONTH) == Calendar.NOVEMBER
                 || now.get(Calendar.MONTH) == Calendar.DECEMBER
                 || now.get(Calendar.MONTH) == Calendar.JANUARY);
@@ -228,150 +250,136 @@ public class Controller implements Runnable {
 
     private void checkDefrost() {
         if (!defrostCheck()) {
-            LogstashLogger.INSTANCE.info("Ending defrost status, switching to startup");
+            info("Ending defrost status, switching to startup");
             stateStartup();
         }
     }
 
     private void readTemperatures() throws IOException {
-        if (jedis.exists("pipe.TflowIn") && jedis.exists("pipe.TflowOut")) {
-            TflowIn = Double.parseDouble(jedis.get("pipe.TflowIn"));
-            TflowOut = Double.parseDouble(jedis.get("pipe.TflowOut"));
+        if (inputs.TflowIn != null && inputs.TflowOut != null) {
+            TflowIn = inputs.TflowIn;
+            TflowOut = inputs.TflowOut;
         } else {
             stateError(); //avoid overheating the pump, shut everything down
-            LogstashLogger.INSTANCE.error("No temperature readings available, going into error state");
+            error("No temperature readings available, going into error state");
             throw new IOException("No control temperature available");
         }
 
-        if (jedis.exists("boiler500.Tbottom")) {
-            Tbottem500 = Double.parseDouble(jedis.get("boiler500.Tbottom"));
-        } else {
-            Tbottem500 = null;
-            LogstashLogger.INSTANCE.warn("Boiler temperature boiler500.Tbottom not available");
+        Tbottem500 = inputs.Tbottom500;
+        if (Tbottem500 == null) {
+            warn("Boiler temperature boiler500.Tbottom not available");
         }
-        if (jedis.exists("solar.stateStartTflowOut")) {
-            stateStartTflowOut = Double.parseDouble(jedis.get("solar.stateStartTflowOut"));
+        if (inputs.stateStartTflowOut != null) {
+            stateStartTflowOut = inputs.stateStartTflowOut;
         }
-        if (jedis.exists("boiler200.Ttop")) {
-            Ttop200 = Double.parseDouble(jedis.get("boiler200.Ttop"));
-        } else {
-            Ttop200 = null;
-            LogstashLogger.INSTANCE.warn("Boiler temperature boiler200.Ttop not available");
+        Ttop200 = inputs.Ttop200;
+        if (Ttop200 == null) {
+            warn("Boiler temperature boiler200.Ttop not available");
         }
     }
 
+    /** True when this run wrote solar.state */
+    public boolean stateWritten() {
+        return stateWritten;
+    }
+
+    /**
+     * Writes the state with its start time and flow out temperature (null deletes them) and resets the slope, as one
+     * atomic transition in the store.
+     */
+    private void transition(SolarState state, Long lastStateChange, Double stateStartTflowOut) {
+        lastStateChangeTime = lastStateChange;
+        store.transition(state, lastStateChange, stateStartTflowOut);
+        stateWritten = true;
+    }
+
     private void stateStartup() {
-        jedis.set("solar.state", SolarState.startup.name());
         //Take some extra time to smooth out early morning temperature swings.
-        jedis.set("solar.lastStateChange", String.valueOf(new Date().getTime() + 10*60*1000));
-        LogstashLogger.INSTANCE.info("Going into startup state");
-        resetTSlope();
+        transition(SolarState.startup, clock.millis() + 10*60*1000, inputs.stateStartTflowOut);
+        info("Going into startup state");
     }
 
     private void stateRecycle() {
-        jedis.set("solar.state", SolarState.recycle.name());
-        jedis.set("solar.lastStateChange", String.valueOf(new Date().getTime()));
-        jedis.set("solar.stateStartTflowOut", String.valueOf(TflowOut));
-        LogstashLogger.INSTANCE.info("Going into recycle state");
-        resetTSlope();
+        transition(SolarState.recycle, clock.millis(), TflowOut);
+        info("Going into recycle state");
     }
 
     private void stateRecycleTimeout() {
-        jedis.set("solar.state", SolarState.recycleTimeout.name());
-        jedis.set("solar.lastStateChange", String.valueOf(new Date().getTime()));
-        jedis.set("solar.stateStartTflowOut", String.valueOf(TflowOut));
-        LogstashLogger.INSTANCE.info("Going into recycle timeout state");
-        resetTSlope();
+        transition(SolarState.recycleTimeout, clock.millis(), TflowOut);
+        info("Going into recycle timeout state");
     }
 
     private void stateLargeBoiler() {
-        jedis.set("solar.state", SolarState.boiler500.name());
-        jedis.set("solar.lastStateChange", String.valueOf(new Date().getTime()));
-        jedis.set("solar.stateStartTflowOut", String.valueOf(TflowOut));
-        LogstashLogger.INSTANCE.info("Switching to boiler500");
-        resetTSlope();
+        transition(SolarState.boiler500, clock.millis(), TflowOut);
+        info("Switching to boiler500");
     }
 
     private void stateSmallBoiler() {
-        jedis.set("solar.state", SolarState.boiler200.name());
-        jedis.set("solar.lastStateChange", String.valueOf(new Date().getTime()));
-        jedis.set("solar.stateStartTflowOut", String.valueOf(TflowOut));
-        LogstashLogger.INSTANCE.info("Switching to boiler200");
-        resetTSlope();
+        transition(SolarState.boiler200, clock.millis(), TflowOut);
+        info("Switching to boiler200");
     }
 
     private void stateError() {
         if (currentState != SolarState.error) {
-            jedis.set("solar.state", SolarState.error.name());
-            if (jedis.exists("solar.lastStateChange")) {
-                jedis.del("solar.lastStateChange"); //this will force system to startup at new state change
-            }
-            if (jedis.exists("solar.stateStartTflowOut")) {
-                jedis.del("solar.stateStartTflowOut");
-            }
-            LogstashLogger.INSTANCE.info("Going into error state");
-            resetTSlope();
+            //No start time, this will force system to startup at new state change
+            transition(SolarState.error, null, null);
+            info("Going into error state");
         }
     }
 
     private void stateOverheat() {
         if (currentState != SolarState.overheat) {
-            jedis.set("solar.state", SolarState.overheat.name());
-            jedis.set("solar.lastStateChange", String.valueOf(new Date().getTime()));
-            jedis.set("solar.stateStartTflowOut", String.valueOf(TflowOut));
-            LogstashLogger.INSTANCE.info("Going into overheat state");
-            resetTSlope();
+            transition(SolarState.overheat, clock.millis(), TflowOut);
+            info("Going into overheat state");
         }
     }
 
     private void stateDefrost() {
         if (currentState != SolarState.defrost) {
-            jedis.set("solar.state", SolarState.defrost.name());
-            jedis.set("solar.lastStateChange", String.valueOf(new Date().getTime()));
-            jedis.set("solar.stateStartTflowOut", String.valueOf(TflowOut));
-            LogstashLogger.INSTANCE.info("Going into defrost state");
-            resetTSlope();
+            transition(SolarState.defrost, clock.millis(), TflowOut);
+            info("Going into defrost state");
         }
     }
 
     private void stateSunset() {
         if (currentState != SolarState.sunset) {
-            jedis.set("solar.state", SolarState.sunset.name());
-            LogstashLogger.INSTANCE.info("Going into sunset state, " + new Sun());
-            if (jedis.exists("solar.lastStateChange")) {
-                jedis.del("solar.lastStateChange"); //this will force system to startup at new state change
-            }
-            if (jedis.exists("solar.stateStartTflowOut")) {
-                jedis.del("solar.stateStartTflowOut");
+            //No start time, this will force system to startup at new state change
+            transition(SolarState.sunset, null, null);
+            if (logging) {
+                // Sun describes the current position, a replay has neither the time nor a use for it
+                info("Going into sunset state, " + new Sun());
             }
+        } else {
+            resetTSlope();
         }
-        resetTSlope();
     }
-/** todo make this work if needed
-    private void pipeTSlope() {
-        if (jedis.llen("pipe.TflowSet") >= MIN_OBSERVATIONS) {
-            SimpleRegression regression = new SimpleRegression();
-            List<String> pipeTemperatures = jedis.lrange("pipe.TflowSet", 0, SolarSlave.T_SET_LENGTH);
-            for (String pipeTemperature : pipeTemperatures) {
-                double time = Double.parseDouble(pipeTemperature.split(":")[0]);
-                if (time > ((double)new Date().getTime())/(60*60*1000) - SLOPE_WINDOW_HR) {
-                    regression.addData(time, Double.parseDouble(pipeTemperature.split(":")[1]));
-                }
-            }
-            if (regression.getN() >= MIN_OBSERVATIONS) {
-                jedis.setex("pipe.Tslope", Properties.redisExpireSeconds, String.valueOf(regression.getSlope()));
-                jedis.setex("pipe.TstandardDeviation", Properties.redisExpireSeconds
-                        , String.valueOf(regression.getSlopeStdErr()));
-            } else {
-                LogstashLogger.INSTANCE.info("Not enough recent observations (" + regression.getN()
-                        + ") for slope calculation");
-            }
-        } else {
-            LogstashLogger.INSTANCE.info("Not yet enough observations for slope calculation");
+
+    private Calendar now() {
+        Calendar now = Calendar.getInstance();
+        now.setTimeInMillis(clock.millis());
+        return now;
+    }
+
+    private void info(String message) {
+        if (logging) {
+            LogstashLogger.INSTANCE.info(message);
         }
     }
-*/
+
+    private void warn(String message) {
+        if (logging) {
+            LogstashLogger.INSTANCE.warn(message);
+        }
+    }
+
+    private void error(String message) {
+        if (logging) {
+            LogstashLogger.INSTANCE.error(message);
+        }
+    }
+
+    /** The slope of the previous state no longer applies, SolarSlave restarts its window on solar.lastStateChange */
     private void resetTSlope() {
-        jedis.del("pipe.TflowSet");
+        store.del("pipe.Tslope", "pipe.TstandardDeviation");
     }
 }
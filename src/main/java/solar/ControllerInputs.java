@@ -0,0 +1,61 @@
+package solar;
+
+import common.SensorHash;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.List;
+
+/**
+ * Every Redis key the solar Controller decides on, read in one round trip. A value is null when its key is not (or no
+ * longer) in Redis.
+ */
+public class ControllerInputs {
+
+    private final static String[] KEYS = {"solar.stateStartTflowOut", "auxiliary.temperature", "solar.state"
+            , "solar.lastStateChange"};
+
+    public final Double TflowIn;
+    public final Double TflowOut;
+    public final Double Tbottom500;
+    public final Double Ttop200;
+    public final Double stateStartTflowOut;
+    public final Double auxiliaryTemperature;
+    public final SolarState state;
+    public final Long lastStateChange;
+
+    public ControllerInputs(Double TflowIn, Double TflowOut, Double Tbottom500, Double Ttop200
+            , Double stateStartTflowOut, Double auxiliaryTemperature, SolarState state, Long lastStateChange) {
+        this.TflowIn = TflowIn;
+        this.TflowOut = TflowOut;
+        this.Tbottom500 = Tbottom500;
+        this.Ttop200 = Ttop200;
+        this.stateStartTflowOut = stateStartTflowOut;
+        this.auxiliaryTemperature = auxiliaryTemperature;
+        this.state = state;
+        this.lastStateChange = lastStateChange;
+    }
+
+    private ControllerInputs(List<String> values, SensorHash.Reading pipe, SensorHash.Reading boiler500
+            , SensorHash.Reading boiler200) {
+        this(pipe.value("TflowIn"), pipe.value("TflowOut"), boiler500.value("Tbottom"), boiler200.value("Ttop")
+                , toDouble(values.get(0)), toDouble(values.get(1))
+                , values.get(2) == null ? null : SolarState.valueOf(values.get(2))
+                , values.get(3) == null ? null : Long.parseLong(values.get(3)));
+    }
+
+    public static ControllerInputs load(Jedis jedis) {
+        Pipeline pipeline = jedis.pipelined();
+        Response<List<String>> values = pipeline.mget(KEYS);
+        SensorHash.Reading pipe = SensorHash.read(pipeline, "pipe", "TflowIn", "TflowOut");
+        SensorHash.Reading boiler500 = SensorHash.read(pipeline, "boiler500", "Tbottom");
+        SensorHash.Reading boiler200 = SensorHash.read(pipeline, "boiler200", "Ttop");
+        pipeline.sync();
+        return new ControllerInputs(values.get(), pipe, boiler500, boiler200);
+    }
+
+    private static Double toDouble(String value) {
+        return value == null ? null : Double.parseDouble(value);
+    }
+}
@@ -0,0 +1,111 @@
+package solar;
+
+import common.LatencyStats;
+import common.LogstashLogger;
+import common.RedisPool;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the solar Controller on every frame of the solar controller, instead of once per cron tick.
+ *
+ * SolarSlave publishes the receipt time of each frame on FRAME_CHANNEL. Frames that arrive while an evaluation is
+ * pending are folded into it, and evaluations are at least MIN_INTERVAL_MS apart. When no frame comes in for a
+ * fallback period the Controller is run anyway, so it still goes into error when the readings are gone.
+ */
+public class ControllerListener extends JedisPubSub implements Runnable {
+    public final static String FRAME_CHANNEL = "solar.frame";
+
+    private final static long MIN_INTERVAL_MS = 1000;
+    private final static long REPORT_INTERVAL_MS = 10*60*1000;
+
+    private final long fallbackMs;
+    private final ScheduledExecutorService evaluator = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+    private volatile long pendingFrameTime;
+    private volatile long lastEvaluation = 0;
+    private long lastReport = System.currentTimeMillis();
+
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong evaluations = new AtomicLong();
+    private final LatencyStats reaction = new LatencyStats("solar frame to state write");
+    private final LatencyStats evaluation = new LatencyStats("solar control evaluation");
+
+    public ControllerListener(int fallbackSeconds) {
+        fallbackMs = TimeUnit.SECONDS.toMillis(fallbackSeconds);
+    }
+
+    /** Blocks while subscribed, it returns when the Redis connection is lost */
+    @Override
+    public void run() {
+        evaluator.scheduleAtFixedRate(this::fallback, fallbackMs, fallbackMs, TimeUnit.MILLISECONDS);
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            LogstashLogger.INSTANCE.info("Solar control listening on " + FRAME_CHANNEL);
+            jedis.subscribe(this, FRAME_CHANNEL);
+        } finally {
+            evaluator.shutdownNow();
+        }
+    }
+
+    @Override
+    public void onMessage(String channel, String message) {
+        frames.incrementAndGet();
+        long frameTime;
+        try {
+            frameTime = Long.parseLong(message);
+        } catch (NumberFormatException e) {
+            frameTime = System.currentTimeMillis();
+        }
+        if (pending.compareAndSet(false, true)) {
+            pendingFrameTime = frameTime;
+            long delay = Math.max(0, lastEvaluation + MIN_INTERVAL_MS - System.currentTimeMillis());
+            evaluator.schedule(this::evaluate, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void evaluate() {
+        long frameTime = pendingFrameTime;
+        // Frames from here on schedule the next evaluation
+        pending.set(false);
+        control(frameTime);
+    }
+
+    private void fallback() {
+        if (System.currentTimeMillis() - lastEvaluation >= fallbackMs) {
+            LogstashLogger.INSTANCE.info("No solar frame for " + fallbackMs + "ms, running the solar control anyway");
+            control(null);
+        }
+        if (System.currentTimeMillis() - lastReport > REPORT_INTERVAL_MS) {
+            LogstashLogger.INSTANCE.info("Solar control frames=" + frames.getAndSet(0)
+                    + ", evaluations=" + evaluations.getAndSet(0));
+            LogstashLogger.INSTANCE.info(reaction.toString());
+            LogstashLogger.INSTANCE.info(evaluation.toString());
+            reaction.reset();
+            evaluation.reset();
+            lastReport = System.currentTimeMillis();
+        }
+    }
+
+    private void control(Long frameTime) {
+        long start = System.nanoTime();
+        try {
+            Controller controller = new Controller();
+            controller.run();
+            if (frameTime != null && controller.stateWritten()) {
+                reaction.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - frameTime));
+            }
+        } catch (RuntimeException e) {
+            LogstashLogger.INSTANCE.error("Solar control has finished with unhandled exception.", e);
+        } finally {
+            evaluation.since(start);
+            evaluations.incrementAndGet();
+            lastEvaluation = System.currentTimeMillis();
+        }
+    }
+}
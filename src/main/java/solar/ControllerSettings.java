@@ -0,0 +1,48 @@
+package solar;
+
+/**
+ * The tunable thresholds of the solar Controller. The safety limits (overheat, small boiler user water) are not in
+ * here, they stay constants of the Controller. DEFAULT is what the Controller runs with, the Sweep tries others.
+ */
+public class ControllerSettings {
+
+    public final static ControllerSettings DEFAULT = new ControllerSettings(5.0, 0.5, 2.0
+            , 60.0, 20.0, 40.0, 5.0, 10*60*1000, 30*60*1000);
+
+    /** Temperature rise of the flow out since the state started that makes the control swap boilers */
+    public final double swapBoilerTempRise;
+    /** Minimal difference between flow in and flow out to count as heat exchange */
+    public final double minFlowDelta;
+    /** Flow difference meaning the sun is shining strong */
+    public final double largeFlowDeltaThreshold;
+    public final double legionellaTemp;
+    public final double minSolarPipeTemp;
+    public final double recycleMaxTemp;
+    /** Use the boiler temperature for control if the temperature difference is larger than this offset */
+    public final double boilerTempControlOffset;
+    /** How many milliseconds control stays in recycle, in summer and in winter */
+    public final long recycleTimeMs;
+    public final long winterRecycleTimeMs;
+
+    public ControllerSettings(double swapBoilerTempRise, double minFlowDelta, double largeFlowDeltaThreshold
+            , double legionellaTemp, double minSolarPipeTemp, double recycleMaxTemp, double boilerTempControlOffset
+            , long recycleTimeMs, long winterRecycleTimeMs) {
+        this.swapBoilerTempRise = swapBoilerTempRise;
+        this.minFlowDelta = minFlowDelta;
+        this.largeFlowDeltaThreshold = largeFlowDeltaThreshold;
+        this.legionellaTemp = legionellaTemp;
+        this.minSolarPipeTemp = minSolarPipeTemp;
+        this.recycleMaxTemp = recycleMaxTemp;
+        this.boilerTempControlOffset = boilerTempControlOffset;
+        this.recycleTimeMs = recycleTimeMs;
+        this.winterRecycleTimeMs = winterRecycleTimeMs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("swapRise=%.1f minDelta=%.1f largeDelta=%.1f legionella=%.0f minPipe=%.0f"
+                        + " recycleMax=%.0f boilerOffset=%.1f recycle=%dm winterRecycle=%dm"
+                , swapBoilerTempRise, minFlowDelta, largeFlowDeltaThreshold, legionellaTemp, minSolarPipeTemp
+                , recycleMaxTemp, boilerTempControlOffset, recycleTimeMs/60000, winterRecycleTimeMs/60000);
+    }
+}
@@ -0,0 +1,23 @@
+package solar;
+
+import java.io.Closeable;
+
+/**
+ * Where the solar Controller reads its inputs and keeps its state: Redis when it controls the boilers, memory when
+ * it runs in the Simulator. Keys are those of the Redis keys ("solar.state", ...).
+ */
+public interface ControllerStore extends Closeable {
+
+    ControllerInputs inputs();
+
+    /**
+     * Sets solar.state, solar.lastStateChange and solar.stateStartTflowOut (a null value deletes the key) and deletes
+     * the pipe slope, all at once. Returns the state in the store afterwards.
+     */
+    SolarState transition(SolarState state, Long lastStateChange, Double stateStartTflowOut);
+
+    void del(String... keys);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,61 @@
+package solar;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ControllerStore of the Simulator. The sensor readings are set from the recorded history before each run of the
+ * Controller, the state keys live in a map.
+ */
+public class MemoryControllerStore implements ControllerStore {
+    private final Map<String, String> values = new HashMap<>();
+    private Simulator.Sample sample;
+
+    public void readings(Simulator.Sample sample) {
+        this.sample = sample;
+    }
+
+    public String get(String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public ControllerInputs inputs() {
+        String state = values.get("solar.state");
+        String lastStateChange = values.get("solar.lastStateChange");
+        String stateStartTflowOut = values.get("solar.stateStartTflowOut");
+        return new ControllerInputs(sample.TflowIn, sample.TflowOut, sample.Tbottom500, sample.Ttop200
+                , stateStartTflowOut == null ? null : Double.parseDouble(stateStartTflowOut), sample.auxiliaryTemperature
+                , state == null ? null : SolarState.valueOf(state)
+                , lastStateChange == null ? null : Long.parseLong(lastStateChange));
+    }
+
+    @Override
+    public SolarState transition(SolarState state, Long lastStateChange, Double stateStartTflowOut) {
+        values.put("solar.state", state.name());
+        put("solar.lastStateChange", lastStateChange == null ? null : String.valueOf(lastStateChange));
+        put("solar.stateStartTflowOut", stateStartTflowOut == null ? null : String.valueOf(stateStartTflowOut));
+        del("pipe.Tslope", "pipe.TstandardDeviation");
+        return state;
+    }
+
+    private void put(String key, String value) {
+        if (value == null) {
+            values.remove(key);
+        } else {
+            values.put(key, value);
+        }
+    }
+
+    @Override
+    public void del(String... keys) {
+        for (String key : keys) {
+            values.remove(key);
+        }
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release, the store lives as long as the simulation
+    }
+}
@@ -0,0 +1,83 @@
+package solar;
+
+import common.RedisPool;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The live ControllerStore. Every call borrows a pooled Redis connection and returns it, so a store that is never
+ * closed, or a Controller that fails before it runs, does not keep a connection from the pool.
+ *
+ * A transition is a Lua script, so it takes one round trip and another client never sees half of it. The script also
+ * appends the transition to the capped list solar.transitions ("time:from:to:stateStartTflowOut", newest first) and
+ * publishes the new state on TRANSITION_CHANNEL.
+ */
+public class RedisControllerStore implements ControllerStore {
+    public final static String TRANSITION_LOG = "solar.transitions";
+    public final static String TRANSITION_CHANNEL = "solar.transition";
+    private final static int TRANSITION_LOG_LENGTH = 1000;
+
+    private final static List<String> TRANSITION_KEYS = Arrays.asList("solar.state", "solar.lastStateChange"
+            , "solar.stateStartTflowOut", "pipe.Tslope", "pipe.TstandardDeviation", TRANSITION_LOG);
+
+    private final static String TRANSITION_SCRIPT =
+            "local previous = redis.call('GET', KEYS[1]) or ''\n"
+            + "redis.call('SET', KEYS[1], ARGV[1])\n"
+            + "if ARGV[2] == '' then redis.call('DEL', KEYS[2]) else redis.call('SET', KEYS[2], ARGV[2]) end\n"
+            + "if ARGV[3] == '' then redis.call('DEL', KEYS[3]) else redis.call('SET', KEYS[3], ARGV[3]) end\n"
+            + "redis.call('DEL', KEYS[4], KEYS[5])\n"
+            + "redis.call('LPUSH', KEYS[6], ARGV[4] .. ':' .. previous .. ':' .. ARGV[1] .. ':' .. ARGV[3])\n"
+            + "redis.call('LTRIM', KEYS[6], 0, tonumber(ARGV[5]) - 1)\n"
+            + "redis.call('PUBLISH', ARGV[6], ARGV[1])\n"
+            + "return redis.call('GET', KEYS[1])";
+
+    /** SHA1 of the loaded script, it survives in Redis until a restart or SCRIPT FLUSH */
+    private static volatile String transitionSha;
+
+    @Override
+    public ControllerInputs inputs() {
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            return ControllerInputs.load(jedis);
+        }
+    }
+
+    @Override
+    public SolarState transition(SolarState state, Long lastStateChange, Double stateStartTflowOut) {
+        List<String> args = Arrays.asList(state.name()
+                , lastStateChange == null ? "" : String.valueOf(lastStateChange)
+                , stateStartTflowOut == null ? "" : String.valueOf(stateStartTflowOut)
+                , String.valueOf(System.currentTimeMillis()), String.valueOf(TRANSITION_LOG_LENGTH)
+                , TRANSITION_CHANNEL);
+        Object result;
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            try {
+                result = jedis.evalsha(transitionSha(jedis, false), TRANSITION_KEYS, args);
+            } catch (JedisNoScriptException e) {
+                result = jedis.evalsha(transitionSha(jedis, true), TRANSITION_KEYS, args);
+            }
+        }
+        return SolarState.valueOf((String) result);
+    }
+
+    private static String transitionSha(Jedis jedis, boolean reload) {
+        if (transitionSha == null || reload) {
+            transitionSha = jedis.scriptLoad(TRANSITION_SCRIPT);
+        }
+        return transitionSha;
+    }
+
+    @Override
+    public void del(String... keys) {
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            jedis.del(keys);
+        }
+    }
+
+    @Override
+    public void close() {
+        // Holds no connection between calls
+    }
+}
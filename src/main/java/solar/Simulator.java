@@ -0,0 +1,191 @@
+package solar;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays a recorded sensor history through the solar Controller, with a simulated clock and a MemoryControllerStore
+ * instead of Redis. The Controller is run once for every sample, like the ControllerListener does for every frame.
+ *
+ * The history is CSV with a header line: time,TflowIn,TflowOut,Tbottom500,Ttop200,auxiliary. The time is epoch ms
+ * or an ISO-8601 instant, an empty value is a missing reading. The samples must be in time order.
+ *
+ * The history is open loop: the recorded temperatures do not respond to the simulated valves. Compare results of
+ * different ControllerSettings on the same history, not with what the boilers really did.
+ */
+public class Simulator {
+
+    public static class Sample {
+        public final long time;
+        public final Double TflowIn;
+        public final Double TflowOut;
+        public final Double Tbottom500;
+        public final Double Ttop200;
+        public final Double auxiliaryTemperature;
+        /** Sun.shining() at the sample time, looked up once when the history is read */
+        public final boolean shining;
+
+        public Sample(long time, Double TflowIn, Double TflowOut, Double Tbottom500, Double Ttop200
+                , Double auxiliaryTemperature, boolean shining) {
+            this.time = time;
+            this.TflowIn = TflowIn;
+            this.TflowOut = TflowOut;
+            this.Tbottom500 = Tbottom500;
+            this.Ttop200 = Ttop200;
+            this.auxiliaryTemperature = auxiliaryTemperature;
+            this.shining = shining;
+        }
+    }
+
+    public static class Result {
+        public final Map<SolarState, Long> stateMillis = new EnumMap<>(SolarState.class);
+        public final List<String> timeline = new ArrayList<>();
+        public int transitions = 0;
+        /** Transitions that move a valve */
+        public int valveSwitches = 0;
+        /** Estimate of the harvested heat, the sum of (TflowIn - TflowOut) over the boiler states in degree hours */
+        public double harvest = 0.0;
+        public long simulatedMillis = 0;
+
+        public long overheatMinutes() {
+            return stateMillis.getOrDefault(SolarState.overheat, 0L)/60000;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder summary = new StringBuilder("Simulated " + simulatedMillis/60000 + " minutes, "
+                    + transitions + " transitions, " + valveSwitches + " valve switches, "
+                    + overheatMinutes() + " overheat minutes, harvest " + String.format("%.1f", harvest)
+                    + " degree hours");
+            for (Map.Entry<SolarState, Long> state : stateMillis.entrySet()) {
+                summary.append("\n  ").append(state.getKey()).append(": ").append(state.getValue()/60000)
+                        .append(" minutes");
+            }
+            return summary.toString();
+        }
+    }
+
+    /** A clock that only moves when the simulation sets it */
+    static class SimulatedClock extends Clock {
+        private final ZoneId zone;
+        private long millis;
+
+        SimulatedClock(ZoneId zone) {
+            this.zone = zone;
+        }
+
+        void set(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return zone;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            SimulatedClock clock = new SimulatedClock(zone);
+            clock.set(millis);
+            return clock;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+    }
+
+    private final ControllerSettings settings;
+
+    public Simulator() {
+        this(ControllerSettings.DEFAULT);
+    }
+
+    public Simulator(ControllerSettings settings) {
+        this.settings = settings;
+    }
+
+    public Result run(List<Sample> history) {
+        SimulatedClock clock = new SimulatedClock(ZoneId.systemDefault());
+        MemoryControllerStore store = new MemoryControllerStore();
+        Result result = new Result();
+        SolarState previous = null;
+        for (int i = 0; i < history.size(); i++) {
+            Sample sample = history.get(i);
+            clock.set(sample.time);
+            store.readings(sample);
+            new Controller(store, clock, time -> sample.shining, settings, false).run();
+
+            String stateValue = store.get("solar.state");
+            SolarState state = stateValue == null ? null : SolarState.valueOf(stateValue);
+            if (state != previous) {
+                if (previous != null) {
+                    result.transitions++;
+                    if (state != null && (state.valveOne != previous.valveOne || state.valveTwo != previous.valveTwo)) {
+                        result.valveSwitches++;
+                    }
+                }
+                result.timeline.add(LocalDateTime.ofInstant(Instant.ofEpochMilli(sample.time), clock.getZone())
+                        + " " + state + " TflowIn=" + sample.TflowIn + " TflowOut=" + sample.TflowOut);
+                previous = state;
+            }
+            if (state != null && i + 1 < history.size()) {
+                long duration = history.get(i + 1).time - sample.time;
+                result.stateMillis.merge(state, duration, Long::sum);
+                result.simulatedMillis += duration;
+                if ((state == SolarState.boiler200 || state == SolarState.boiler500)
+                        && sample.TflowIn != null && sample.TflowOut != null) {
+                    result.harvest += (sample.TflowIn - sample.TflowOut)*duration/3600000.0;
+                }
+            }
+        }
+        return result;
+    }
+
+    public static List<Sample> read(Reader reader) throws IOException {
+        List<Sample> history = new ArrayList<>();
+        Sun sun = new Sun();
+        BufferedReader lines = new BufferedReader(reader);
+        String line = lines.readLine(); // header
+        while ((line = lines.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String[] values = line.split(",", -1);
+            long time = parseTime(values[0].trim());
+            history.add(new Sample(time, value(values, 1), value(values, 2)
+                    , value(values, 3), value(values, 4), value(values, 5), sun.shining(time)));
+        }
+        return history;
+    }
+
+    private static long parseTime(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return Instant.parse(value).toEpochMilli();
+        }
+    }
+
+    private static Double value(String[] values, int index) {
+        if (index >= values.length || values[index].trim().isEmpty()) {
+            return null;
+        }
+        return Double.parseDouble(values[index].trim());
+    }
+}
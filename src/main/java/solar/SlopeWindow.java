@@ -0,0 +1,118 @@
+package solar;
+
+/**
+ * Streaming linear regression of a temperature over time, in a sliding window of the most recent hours.
+ *
+ * The samples are kept in primitive ring buffers with running sums, so adding a sample and evicting the old ones
+ * costs O(1) each, instead of reparsing a list of samples and rebuilding a regression on every tick. The results
+ * are equal to those of commons-math SimpleRegression over the same samples.
+ */
+public class SlopeWindow {
+    private final double windowHr;
+    private final double[] times;
+    private final double[] values;
+    private int head = 0;
+    private int size = 0;
+
+    /** Times are stored relative to the origin to keep the sums of squares small */
+    private double origin;
+    private double sumX, sumY, sumXX, sumXY, sumYY;
+
+    public SlopeWindow(double windowHr, int capacity) {
+        this.windowHr = windowHr;
+        times = new double[capacity];
+        values = new double[capacity];
+    }
+
+    public void add(double timeHr, double value) {
+        if (size == 0) {
+            origin = timeHr;
+        }
+        while (size > 0 && times[head] + origin < timeHr - windowHr) {
+            removeOldest();
+        }
+        if (size == times.length) {
+            removeOldest();
+        }
+        if (timeHr - origin > 24*windowHr) {
+            rebase(timeHr);
+        }
+        double x = timeHr - origin;
+        int tail = (head + size) % times.length;
+        times[tail] = x;
+        values[tail] = value;
+        size++;
+        sumX += x;
+        sumY += value;
+        sumXX += x*x;
+        sumXY += x*value;
+        sumYY += value*value;
+    }
+
+    public void reset() {
+        head = 0;
+        size = 0;
+        sumX = sumY = sumXX = sumXY = sumYY = 0.0;
+    }
+
+    public int count() {
+        return size;
+    }
+
+    /** Slope in degrees per hour, NaN with less than two samples */
+    public double slope() {
+        double sxx = centeredXX();
+        return size < 2 || sxx == 0.0 ? Double.NaN : centeredXY()/sxx;
+    }
+
+    /** Standard error of the slope, NaN with less than three samples */
+    public double slopeStdErr() {
+        double sxx = centeredXX();
+        if (size < 3 || sxx == 0.0) {
+            return Double.NaN;
+        }
+        double sxy = centeredXY();
+        double sumSquaredErrors = Math.max(0.0, centeredYY() - sxy*sxy/sxx);
+        return Math.sqrt(sumSquaredErrors/(size - 2)/sxx);
+    }
+
+    private double centeredXX() {
+        return sumXX - sumX*sumX/size;
+    }
+
+    private double centeredXY() {
+        return sumXY - sumX*sumY/size;
+    }
+
+    private double centeredYY() {
+        return sumYY - sumY*sumY/size;
+    }
+
+    private void removeOldest() {
+        double x = times[head], y = values[head];
+        sumX -= x;
+        sumY -= y;
+        sumXX -= x*x;
+        sumXY -= x*y;
+        sumYY -= y*y;
+        head = (head + 1) % times.length;
+        size--;
+    }
+
+    /** Moves the origin to given time and recomputes the sums, which also clears the accumulated rounding errors */
+    private void rebase(double newOrigin) {
+        double shift = newOrigin - origin;
+        origin = newOrigin;
+        sumX = sumY = sumXX = sumXY = sumYY = 0.0;
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % times.length;
+            times[index] -= shift;
+            double x = times[index], y = values[index];
+            sumX += x;
+            sumY += y;
+            sumXX += x*x;
+            sumXY += x*y;
+            sumYY += y*y;
+        }
+    }
+}
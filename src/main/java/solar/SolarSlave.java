@@ -1,182 +1,195 @@
 package solar;
 
 import com.fazecast.jSerialComm.SerialPort;
+import common.BinaryFrame;
+import common.Frame;
+import common.LatencyStats;
 import common.LogstashLogger;
 import common.Properties;
+import common.RedisPool;
+import common.SensorHash;
 import furnace.BoilerDAO;
 
+import org.json.JSONObject;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
 import usb.ListPorts;
+import usb.SerialHandler;
 
 import java.io.*;
-import java.util.Date;
+import java.util.List;
+import java.util.Objects;
 
 /**
  * Created by Jaap on 25-7-2016.
+ *
+ * Serial protocol of the solar controller, served by the SerialHub. The controller sends text lines or, when its
+ * firmware supports them, BinaryFrames; the reply is in the same format.
+ *
+ * Frames are recognised by their version byte rather than negotiated, as explained in FurnaceSlave. No solar
+ * firmware sends them yet.
  */
-public class SolarSlave implements Runnable, Closeable {
+public class SolarSlave implements SerialHandler {
 
     private static final String STARTTIME = "solarslave.starttime";
-    private final static int TTL = 60;
-    private final long startTime;
-    private long lastConnection;
 
-    private final Properties prop = new Properties();
+    /** The accepted readings of every frame are published here as JSON, for the /stream endpoint */
+    public static final String READINGS_CHANNEL = "solar.readings";
 
-    private final SerialPort serialPort;
-    private boolean stayOpen = true;
-    private String buffer = "";
-    private String lineIn = "";
+    private final Properties prop = Properties.get();
+    private final LatencyStats redisLatency = new LatencyStats("solar frame redis");
 
-    /** Set length is number of measurements in window (times 2 to be certain you have enough) */
-    public static final int T_SET_LENGTH = (int)Controller.SLOPE_WINDOW_HR*60*60*2*2;
+    /** Window capacity is number of measurements in window (times 2 to be certain you have enough) */
+    private static final int SLOPE_CAPACITY = (int)(Controller.SLOPE_WINDOW_HR*60*60*2*2);
 
-    public SolarSlave() {
-        startTime = System.currentTimeMillis();
-        lastConnection = System.currentTimeMillis();
+    private final SlopeWindow slope = new SlopeWindow(Controller.SLOPE_WINDOW_HR, SLOPE_CAPACITY);
+    /** Last seen solar.lastStateChange, the slope window restarts when the controller changes state */
+    private String lastStateChange = null;
 
-        checkAndExitIfNotSingle();
-        serialPort = ListPorts.findDevice(ListPorts.Device.solar);
+    private final BinaryFrame frameIn = new BinaryFrame();
+    private final byte[] frameOut = new byte[BinaryFrame.HEADER_SIZE + 2];
+    private int lastSequence = -1;
+    private long missedFrames = 0;
+    private long invalidFrames = 0;
 
-        if (serialPort == null) {
-            LogstashLogger.INSTANCE.error("Could not find USB port, exiting");
-            close();
-            System.exit(0);
-        }
+    @Override
+    public ListPorts.Device device() {
+        return ListPorts.Device.solar;
+    }
 
-        try (Jedis jedis = new Jedis("localhost")) {
-            jedis.set("usb.solar", serialPort.getSystemPortName());
-        }
+    @Override
+    public String startTimeKey() {
+        return STARTTIME;
     }
 
-    /**
-     * This should be called when you stop using the port.
-     * This will prevent port locking on platforms like Linux.
-     */
-    public void close() {
-        stayOpen = false;
-        if (serialPort != null && serialPort.isOpen()) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) { }
-            serialPort.closePort();
-        }
-        try (Jedis jedis = new Jedis("localhost")) {
-            jedis.del(STARTTIME);
-        }
+    @Override
+    public void report() {
+        LogstashLogger.INSTANCE.info(redisLatency.toString());
+        redisLatency.reset();
+        LogstashLogger.INSTANCE.info("Solar binary frames missed=" + missedFrames + ", invalid=" + invalidFrames);
+        missedFrames = 0;
+        invalidFrames = 0;
     }
 
-    public void listen() {
-        if (serialPort.bytesAvailable() > 0) {
-            byte[] readBuffer = new byte[serialPort.bytesAvailable()];
-            serialPort.readBytes(readBuffer, readBuffer.length);
-            String input = new String(readBuffer);
-            if (input.endsWith("\r\n")) {
-                lineIn = buffer + input.split("\r\n")[0];
-                buffer = "";
-            } else if (input.contains("\r\n")) {
-                lineIn = buffer + input.split("\r\n")[0];
-                buffer = input.split("\r\n")[1];
-            } else {
-                buffer += input;
-            }
+    @Override
+    public void respond(Frame lineIn, SerialPort serialPort) throws IOException {
+        if (BinaryFrame.isBinary(lineIn.buffer()[0])) {
+            respondBinary(lineIn, serialPort);
+        } else if (lineIn.startsWith("log:solar:")) {
+            LogstashLogger.INSTANCE.message("iot-solar-controller-" + prop.deviceName, lineIn.substring(10).trim());
+        } else if (lineIn.fieldCount() == 8) {
+            LogstashLogger.INSTANCE.info("Solar event " + lineIn);
+            //Format: Ttop:Tmiddle:Tbottom:TflowIn:TflowOut:SvalveI:SvalveII:Spump
+            //       20.06:17.87:16.31:14.00:15.69:T:T:T
+            frame(lineIn.doubleField(0), lineIn.doubleField(1), lineIn.doubleField(2)
+                    , lineIn.doubleField(3), lineIn.doubleField(4)
+                    , lineIn.flagField(5), lineIn.flagField(6), lineIn.flagField(7), state -> {
+                //Response format: [ValveI][ValveII][SolarPump]
+                serialPort.getOutputStream().write(state.line());
+                serialPort.getOutputStream().flush();
+            });
+        } else {
+            LogstashLogger.INSTANCE.error("Received garbage from the Furnace micro controller: " + lineIn);
         }
     }
 
-    public void respond() {
-        if (!lineIn.equals("")) {
-            String[] lineParts = lineIn.split(":");
-            if (lineIn.startsWith("log:solar:")) {
-                LogstashLogger.INSTANCE.message("iot-solar-controller-" + prop.deviceName, lineIn.substring(10).trim());
-            } else if (lineParts.length == 8) {
-                LogstashLogger.INSTANCE.info("Solar event " + lineIn);
-                //Format: Ttop:Tmiddle:Tbottom:TflowIn:TflowOut:SvalveI:SvalveII:Spump
-                //       20.06:17.87:16.31:14.00:15.69:T:T:T
-
-                try (Jedis jedis = new Jedis("localhost")) {
-                    if (!BoilerDAO.isOutlier(lineParts[0], 5.0
-                            , 105.0, 5.0, null)) {
-                        jedis.setex("boiler500.Ttop", 60, lineParts[0]);
-                    }
-                    if (!BoilerDAO.isOutlier(lineParts[1], 5.0
-                            , 105.0, 5.0, null)) {
-                        jedis.setex("boiler500.Tmiddle", 60, lineParts[1]);
-                    }
-                    if (!BoilerDAO.isOutlier(lineParts[2], 5.0
-                            , 105.0, 5.0, null)) {
-                        jedis.setex("boiler500.Tbottom", 60, lineParts[2]);
-                    }
-                    if (!BoilerDAO.isOutlier(lineParts[3], -20.0
-                            , 125.0, 5.0, null)) {
-                        jedis.setex("pipe.TflowIn", 60, lineParts[3]);
-                    }
-                    if (!BoilerDAO.isOutlier(lineParts[4], -20.0
-                            , 125.0, 5.0, null)) {
-                        jedis.setex("pipe.TflowOut", 60, lineParts[4]);
-                    }
-                    jedis.setex("solarStateReal", 60, SolarState.principalState(
-                            "T".equals(lineParts[5]), "T".equals(lineParts[6]), "T".equals(lineParts[7])).name());
-
-                    jedis.lpush("pipe.TflowSet", Double.toString(((double) new Date().getTime()) / (60 * 60 * 1000))
-                            + ":" + lineParts[4]);
-                    jedis.ltrim("pipe.TflowSet", 0, T_SET_LENGTH);
-
-                    try {
-                        //Response format: [ValveI][ValveII][SolarPump]
-                        if (jedis.exists("solarState")) {
-                            SolarState state = SolarState.valueOf(jedis.get("solarState"));
-                            serialPort.getOutputStream().write(state.line());
-                        } else {
-                            serialPort.getOutputStream().write(SolarState.error.line());
-                        }
-                        serialPort.getOutputStream().flush();
-                    } catch (IOException e) {
-                        LogstashLogger.INSTANCE.error("Failed writing to solar controller");
-                        close();
-                        System.exit(0);
-                    }
-                }
-            } else {
-                LogstashLogger.INSTANCE.error("Received garbage from the Furnace micro controller: " + lineIn);
-            }
-            lineIn = "";
-            try (Jedis jedis = new Jedis("localhost")) {
-                jedis.setex(STARTTIME, TTL, String.valueOf((int)((System.currentTimeMillis() - startTime)/1000)));
-            }
-            lastConnection = System.currentTimeMillis();
+    /** The binary version of the solar event, the reply is binary as well, with the sequence of the event */
+    private void respondBinary(Frame lineIn, SerialPort serialPort) throws IOException {
+        if (!frameIn.read(lineIn) || frameIn.type() != BinaryFrame.TYPE_SOLAR_STATE) {
+            invalidFrames++;
+            LogstashLogger.INSTANCE.error("Received an invalid frame from the Solar micro controller: "
+                    + (frameIn.error() != null ? frameIn.error() : frameIn.toString()));
+            return;
         }
+        missedFrames += BinaryFrame.missed(lastSequence, frameIn.sequence());
+        lastSequence = frameIn.sequence();
+        LogstashLogger.INSTANCE.info("Solar event " + frameIn);
+        frame(frameIn.temperature(0), frameIn.temperature(2), frameIn.temperature(4)
+                , frameIn.temperature(6), frameIn.temperature(8)
+                , frameIn.flag(10, 0), frameIn.flag(10, 1), frameIn.flag(10, 2), state -> {
+            int length = BinaryFrame.writeFlags(frameOut, BinaryFrame.TYPE_SOLAR_REQUEST, frameIn.sequence()
+                    , state.valveOne, state.valveTwo, state.solarPump);
+            serialPort.getOutputStream().write(frameOut, 0, length);
+            serialPort.getOutputStream().flush();
+        });
     }
 
-    public void run() {
-        LogstashLogger.INSTANCE.info("Starting SolarSlave");
-        while (stayOpen) {
-            if (!serialPort.isOpen()) {
-                serialPort.openPort();
-            }
-
-            listen();
-            respond();
-
-            if (System.currentTimeMillis() - lastConnection > TTL*1000) {
-                LogstashLogger.INSTANCE.error("Closing solar controller usb connection after timeout of inactivity.");
-                System.out.println("Perhaps lost the solar serial connection, closing");
-                close();
-                System.exit(0);
-            }
+    /** Writes the state the controller should be in to the controller */
+    private interface Reply {
+        void send(SolarState state) throws IOException;
+    }
 
+    /**
+     * Replies the state the controller should be in and stores the readings of a frame. The reply waits only for the
+     * read of the state, the writes follow in one pipelined round trip. They are done even when the reply fails.
+     */
+    private void frame(double Ttop, double Tmiddle, double Tbottom, double TflowIn, double TflowOut
+            , boolean valveI, boolean valveII, boolean pump, Reply reply) throws IOException {
+        long frameStart = System.nanoTime();
+        IOException replyFailure = null;
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            // The last state change is read along, a state change restarts the slope window before this frame's
+            // sample goes in
+            List<String> control = jedis.mget("solarState", "solar.lastStateChange");
+            SolarState state = control.get(0) == null ? SolarState.error : SolarState.valueOf(control.get(0));
             try {
-                Thread.sleep(150);
-            } catch (InterruptedException e) {
+                reply.send(state);
+            } catch (IOException e) {
+                replyFailure = e;
+            }
+            if (!Objects.equals(lastStateChange, control.get(1))) {
+                lastStateChange = control.get(1);
+                slope.reset();
             }
-        }
-    }
 
-    private void checkAndExitIfNotSingle() {
-        try (Jedis jedis = new Jedis("localhost")) {
-            if (jedis.exists(STARTTIME)) {
-                System.exit(0);
+            Pipeline pipeline = jedis.pipelined();
+            long now = System.currentTimeMillis();
+            SensorHash boiler500 = new SensorHash("boiler500");
+            SensorHash pipe = new SensorHash("pipe");
+            JSONObject readings = new JSONObject().put("time", now);
+            if (!BoilerDAO.isOutlier(Ttop, 5.0
+                    , 105.0, 5.0, null)) {
+                boiler500.put("Ttop", Ttop, now);
+                readings.put("Ttop", Ttop);
             }
-            jedis.setex(STARTTIME, TTL, String.valueOf((int)((System.currentTimeMillis() - startTime)/1000)));
+            if (!BoilerDAO.isOutlier(Tmiddle, 5.0
+                    , 105.0, 5.0, null)) {
+                boiler500.put("Tmiddle", Tmiddle, now);
+                readings.put("Tmiddle", Tmiddle);
+            }
+            if (!BoilerDAO.isOutlier(Tbottom, 5.0
+                    , 105.0, 5.0, null)) {
+                boiler500.put("Tbottom", Tbottom, now);
+                readings.put("Tbottom", Tbottom);
+            }
+            if (!BoilerDAO.isOutlier(TflowIn, -20.0
+                    , 125.0, 5.0, null)) {
+                pipe.put("TflowIn", TflowIn, now);
+                readings.put("TflowIn", TflowIn);
+            }
+            if (!BoilerDAO.isOutlier(TflowOut, -20.0
+                    , 125.0, 5.0, null)) {
+                pipe.put("TflowOut", TflowOut, now);
+                readings.put("TflowOut", TflowOut);
+                slope.add(((double) now) / (60 * 60 * 1000), TflowOut);
+            }
+            boiler500.write(pipeline);
+            pipe.write(pipeline);
+            pipeline.setex("solarStateReal", 60, SolarState.principalState(
+                    valveI, valveII, pump).name());
+
+            if (slope.count() >= Controller.MIN_OBSERVATIONS) {
+                pipeline.setex("pipe.Tslope", SensorHash.TTL, String.valueOf(slope.slope()));
+                pipeline.setex("pipe.TstandardDeviation", SensorHash.TTL, String.valueOf(slope.slopeStdErr()));
+            }
+            pipeline.publish(ControllerListener.FRAME_CHANNEL, String.valueOf(now));
+            pipeline.publish(READINGS_CHANNEL, readings.put("solarStateReal", SolarState.principalState(
+                    valveI, valveII, pump).name()).toString());
+            pipeline.sync();
+        }
+        redisLatency.since(frameStart);
+        if (replyFailure != null) {
+            throw replyFailure;
         }
     }
 }
@@ -2,10 +2,17 @@ package solar;
 
 import common.FluxLogger;
 import common.LogstashLogger;
+import common.RedisPool;
+import common.SensorHash;
 import net.e175.klaus.solarpositioning.AzimuthZenithAngle;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
 import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class SolarStateToInflux extends FluxLogger implements Runnable {
     public SolarStateToInflux() throws UnknownHostException {
@@ -14,7 +21,7 @@ public class SolarStateToInflux extends FluxLogger implements Runnable {
 
     @Override
     public void run() {
-        try (Jedis jedis = new Jedis("localhost")) {
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
             logTemperatures(jedis);
             logControl(jedis);
         }
@@ -22,33 +29,43 @@ public class SolarStateToInflux extends FluxLogger implements Runnable {
     }
 
     private void logTemperatures(Jedis jedis) {
+        Pipeline pipeline = jedis.pipelined();
+        Map<String, SensorHash.Reading> readings = new HashMap<>();
+        for (String sensorLocation : TemperatureSensor.sensors.keySet()) {
+            readings.put(sensorLocation, SensorHash.read(pipeline, sensorLocation
+                    , TemperatureSensor.sensors.get(sensorLocation)));
+        }
+        Response<List<String>> slope = pipeline.mget("pipe.Tslope", "pipe.TstandardDeviation");
+        pipeline.sync();
+
         for (String sensorLocation : TemperatureSensor.sensors.keySet()) {
             for (String sensorPosition : TemperatureSensor.sensors.get(sensorLocation)) {
-                String key = sensorLocation + '.' + sensorPosition;
-                if (jedis.exists(key)) {
+                Double value = readings.get(sensorLocation).value(sensorPosition);
+                if (value != null) {
                     String line;
                     if (sensorLocation.startsWith("boiler")) {
                         line = "boiler,name=" + sensorLocation + ",position=" + sensorPosition
-                                + " temperature=" + jedis.get(key);
+                                + " temperature=" + value;
                     } else {
-                        line = sensorLocation + ".temperature " + sensorPosition + "=" + jedis.get(key);
+                        line = sensorLocation + ".temperature " + sensorPosition + "=" + value;
                     }
                     send(line);
                 } else {
-                    LogstashLogger.INSTANCE.warn("No temperature for " + key);
+                    LogstashLogger.INSTANCE.warn("No temperature for " + sensorLocation + '.' + sensorPosition);
                 }
             }
         }
-        if (jedis.exists("pipe.Tslope")) {
-            send("pipe.velocity slope=" + jedis.get("pipe.Tslope") + ",deviation=" + jedis.get("pipe.TstandardDeviation"));
+        if (slope.get().get(0) != null) {
+            send("pipe.velocity slope=" + slope.get().get(0) + ",deviation=" + slope.get().get(1));
         }
     }
 
     private void logControl(Jedis jedis) {
+        List<String> values = jedis.mget("solarState", "solarStateReal", "stateStartTflowOut");
         String line = "solarstate,controlstate="
-                + (jedis.exists("solarState") ? jedis.get("solarState") : "unavailable");
-        line += ",realstate=" + (jedis.exists("solarStateReal") ? jedis.get("solarStateReal") : "unavailable");
-        line += " startTflowOut=" + jedis.get("stateStartTflowOut");
+                + (values.get(0) != null ? values.get(0) : "unavailable");
+        line += ",realstate=" + (values.get(1) != null ? values.get(1) : "unavailable");
+        line += " startTflowOut=" + values.get(2);
         line += ",value=1";
 
         send(line);
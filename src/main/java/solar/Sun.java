@@ -7,9 +7,16 @@ import net.e175.klaus.solarpositioning.SPA;
 
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Created by Jaap on 25-7-2016.
+ *
+ * The sun position comes from a table with an SPA position for every minute of the day, which is calculated once per
+ * day and location and shared by all Sun instances. The tables of the last CACHED_DAYS days that were asked for are
+ * kept, so replays over several days do not rebuild them. Positions in between are interpolated, the error is far
+ * below the precision of the shining thresholds (see SunTest and the "sun" command of Main).
  */
 public class Sun {
 
@@ -21,15 +28,50 @@ public class Sun {
     private final static double MORNING_ZENITH = 79.0;
     private final static double EVENING_ZENITH = 83.5;
 
+    private final static long STEP_MS = 60*1000;
+    private final static int CACHED_DAYS = 16;
+
+    /** The table last looked up, checked without taking the lock */
+    private static volatile Table last;
+    /** Tables by start of the day, least recently used first */
+    private final static Map<Long, Table> tables = new LinkedHashMap<Long, Table>(CACHED_DAYS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Table> eldest) {
+            return size() > CACHED_DAYS;
+        }
+    };
+
     public Sun() {
-        Properties prop = new Properties();
-        elevation = prop.elevation;
-        latitude = prop.latitude;
-        longitude = prop.longitude;
+        this(Properties.get().latitude, Properties.get().longitude, Properties.get().elevation);
+    }
+
+    public Sun(double latitude, double longitude, int elevation) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.elevation = elevation;
     }
 
     public AzimuthZenithAngle position() {
+        return position(System.currentTimeMillis());
+    }
+
+    /** Interpolated position from the table of the day */
+    public AzimuthZenithAngle position(long time) {
+        Table current = last;
+        if (current == null || !current.covers(time) || !current.at(latitude, longitude, elevation)) {
+            current = table(time, latitude, longitude, elevation);
+        }
+        return current.position(time);
+    }
+
+    /** Position calculated by SPA, slow compared to position() */
+    public AzimuthZenithAngle spaPosition(long time) {
+        return spaPosition(time, latitude, longitude, elevation);
+    }
+
+    private static AzimuthZenithAngle spaPosition(long time, double latitude, double longitude, int elevation) {
         final GregorianCalendar dateTime = new GregorianCalendar();
+        dateTime.setTimeInMillis(time);
         return SPA.calculateSolarPosition(
                 dateTime,
                 latitude, longitude, elevation,
@@ -39,9 +81,19 @@ public class Sun {
     }
 
     public boolean shining() {
+        return shining(System.currentTimeMillis());
+    }
+
+    public boolean shining(long time) {
+        return shining(time, position(time));
+    }
+
+    /** The shining rule for a given position, public so it can be checked against the SPA positions */
+    public static boolean shining(long time, AzimuthZenithAngle position) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
         boolean retVal;
-        AzimuthZenithAngle position = position();
-        if (Calendar.getInstance().get(Calendar.HOUR_OF_DAY) < 12) {
+        if (calendar.get(Calendar.HOUR_OF_DAY) < 12) {
             retVal = position.getAzimuth() < MAX_AZIMUTH
                     && position.getAzimuth() > MIN_AZIMUTH
                     && position.getZenithAngle() < MORNING_ZENITH;
@@ -54,10 +106,91 @@ public class Sun {
         return retVal;
     }
 
+    /** Looks up or builds the table of the day, one thread builds it while the others wait for it */
+    private static synchronized Table table(long time, double latitude, double longitude, int elevation) {
+        long dayStart = dayStart(time);
+        Table table = tables.get(dayStart);
+        if (table == null || !table.at(latitude, longitude, elevation)) {
+            table = new Table(dayStart, latitude, longitude, elevation);
+            tables.put(dayStart, table);
+        }
+        last = table;
+        return table;
+    }
+
+    private static long dayStart(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
     @Override
     public String toString() {
-        AzimuthZenithAngle position = position();
+        long now = System.currentTimeMillis();
+        AzimuthZenithAngle position = position(now);
         return "Sun position azimuth: " + position.getAzimuth() +
-                ", zenith angle: " + position.getZenithAngle() + ", shining: " + shining();
+                ", zenith angle: " + position.getZenithAngle() + ", shining: " + shining(now, position);
+    }
+
+    /** SPA positions of one local day, one per STEP_MS, the last one is the start of the next day */
+    private static class Table {
+        final long dayStart;
+        final long dayEnd;
+        final double latitude, longitude;
+        final int elevation;
+        final double[] azimuth;
+        final double[] zenith;
+
+        Table(long dayStart, double latitude, double longitude, int elevation) {
+            this.dayStart = dayStart;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.elevation = elevation;
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(dayStart);
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            dayEnd = calendar.getTimeInMillis();
+
+            // A day is 23 or 25 hours when daylight saving time starts or ends
+            int size = (int)((dayEnd - dayStart)/STEP_MS) + 1;
+            azimuth = new double[size];
+            zenith = new double[size];
+            for (int i = 0; i < size; i++) {
+                AzimuthZenithAngle position = spaPosition(dayStart + i*STEP_MS, latitude, longitude, elevation);
+                azimuth[i] = position.getAzimuth();
+                zenith[i] = position.getZenithAngle();
+            }
+        }
+
+        boolean covers(long time) {
+            return time >= dayStart && time < dayEnd;
+        }
+
+        boolean at(double latitude, double longitude, int elevation) {
+            return this.latitude == latitude && this.longitude == longitude && this.elevation == elevation;
+        }
+
+        AzimuthZenithAngle position(long time) {
+            int i = (int)((time - dayStart)/STEP_MS);
+            double fraction = (double)((time - dayStart) % STEP_MS)/STEP_MS;
+            double azimuthStep = azimuth[i + 1] - azimuth[i];
+            // The azimuth wraps at north, interpolate the short way round
+            if (azimuthStep > 180.0) {
+                azimuthStep -= 360.0;
+            } else if (azimuthStep < -180.0) {
+                azimuthStep += 360.0;
+            }
+            double interpolated = azimuth[i] + fraction*azimuthStep;
+            if (interpolated < 0.0) {
+                interpolated += 360.0;
+            } else if (interpolated >= 360.0) {
+                interpolated -= 360.0;
+            }
+            return new AzimuthZenithAngle(interpolated, zenith[i] + fraction*(zenith[i + 1] - zenith[i]));
+        }
     }
 }
@@ -0,0 +1,67 @@
+package solar;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Grid search over the ControllerSettings: every combination is replayed through the Simulator on the same history,
+ * in parallel on all cores. The results are ranked by harvested heat, fewer valve switches first on a tie.
+ */
+public class Sweep {
+
+    private final static double[] SWAP_BOILER_TEMP_RISE = {3.0, 4.0, 5.0, 6.0, 8.0};
+    private final static double[] MIN_FLOW_DELTA = {0.3, 0.5, 1.0};
+    private final static double[] LARGE_FLOW_DELTA_THRESHOLD = {1.0, 2.0, 3.0};
+    private final static double[] LEGIONELLA_TEMP = {55.0, 60.0, 65.0};
+    private final static long[] RECYCLE_TIME_MINUTES = {5, 10, 15};
+
+    public static class Score {
+        public final ControllerSettings settings;
+        public final Simulator.Result result;
+
+        Score(ControllerSettings settings, Simulator.Result result) {
+            this.settings = settings;
+            this.result = result;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%8.1f %6d %6d  %s", result.harvest, result.valveSwitches
+                    , result.overheatMinutes(), settings);
+        }
+    }
+
+    public static List<ControllerSettings> grid() {
+        ControllerSettings base = ControllerSettings.DEFAULT;
+        List<ControllerSettings> grid = new ArrayList<>();
+        for (double swapRise : SWAP_BOILER_TEMP_RISE) {
+            for (double minDelta : MIN_FLOW_DELTA) {
+                for (double largeDelta : LARGE_FLOW_DELTA_THRESHOLD) {
+                    for (double legionella : LEGIONELLA_TEMP) {
+                        for (long recycleMinutes : RECYCLE_TIME_MINUTES) {
+                            grid.add(new ControllerSettings(swapRise, minDelta, largeDelta, legionella
+                                    , base.minSolarPipeTemp, base.recycleMaxTemp, base.boilerTempControlOffset
+                                    , recycleMinutes*60*1000, base.winterRecycleTimeMs));
+                        }
+                    }
+                }
+            }
+        }
+        return grid;
+    }
+
+    /** Replays the history for every settings of the grid, best first */
+    public List<Score> run(List<Simulator.Sample> history) {
+        return grid().parallelStream()
+                .map(settings -> new Score(settings, new Simulator(settings).run(history)))
+                .sorted(Comparator.comparingDouble((Score score) -> -score.result.harvest)
+                        .thenComparingInt(score -> score.result.valveSwitches))
+                .collect(Collectors.toList());
+    }
+
+    public static String header() {
+        return " harvest switch overht  settings";
+    }
+}
@@ -0,0 +1,105 @@
+package usb;
+
+import common.Frame;
+
+/**
+ * Cuts the serial byte stream of a micro controller into CRLF terminated lines.
+ *
+ * Bytes are kept in a fixed size ring buffer, so reading does not allocate. A read may contain part of a line or
+ * several lines at once; every complete line is handed out in order. A line that does not fit in the buffer is
+ * garbage (a lost line end or line noise) and is dropped up to the next line end, so memory stays capped.
+ */
+public class LineFramer {
+    private final byte[] ring;
+    private int head = 0;
+    private int size = 0;
+    /** Number of bytes from head already searched for a line end */
+    private int scanned = 0;
+    private boolean discarding = false;
+    private long droppedLines = 0;
+
+    public LineFramer(int capacity) {
+        ring = new byte[capacity];
+    }
+
+    /**
+     * Adds bytes to the buffer. Returns the number of bytes taken, which is less than length when the buffer is filled
+     * with complete lines. Drain those with next() and feed the remainder.
+     */
+    public int feed(byte[] src, int offset, int length) {
+        int taken = 0;
+        while (taken < length) {
+            byte b = src[offset + taken];
+            if (discarding) {
+                discarding = b != '\n';
+            } else if (size == ring.length) {
+                if (hasLine()) {
+                    return taken;
+                }
+                // A full buffer without a line end, this is not a line of ours
+                droppedLines++;
+                head = 0;
+                size = 0;
+                scanned = 0;
+                discarding = b != '\n';
+            } else {
+                ring[(head + size) % ring.length] = b;
+                size++;
+            }
+            taken++;
+        }
+        return taken;
+    }
+
+    /**
+     * Copies the next complete line, without the CRLF, into given frame. Empty lines are skipped.
+     * @return false when there is no complete line
+     */
+    public boolean next(Frame frame) {
+        while (hasLine()) {
+            int lineLength = scanned;
+            int copyLength = lineLength;
+            if (copyLength > 0 && ring[(head + copyLength - 1) % ring.length] == '\r') {
+                copyLength--;
+            }
+            copyLength = Math.min(copyLength, frame.capacity());
+            byte[] target = frame.buffer();
+            int first = Math.min(copyLength, ring.length - head);
+            System.arraycopy(ring, head, target, 0, first);
+            System.arraycopy(ring, 0, target, first, copyLength - first);
+            frame.setLength(copyLength);
+
+            head = (head + lineLength + 1) % ring.length;
+            size -= lineLength + 1;
+            scanned = 0;
+            if (copyLength > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Forgets the buffered bytes, for example when the port was reopened */
+    public void clear() {
+        head = 0;
+        size = 0;
+        scanned = 0;
+        discarding = false;
+    }
+
+    /** Number of lines dropped because they exceeded the buffer */
+    public long droppedLines() {
+        return droppedLines;
+    }
+
+    /** Scans for a line end, afterwards scanned is the length of the line up to the LF */
+    private boolean hasLine() {
+        while (scanned < size) {
+            if (ring[(head + scanned) % ring.length] == '\n') {
+                return true;
+            }
+            scanned++;
+        }
+        return false;
+    }
+}
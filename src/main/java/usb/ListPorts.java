@@ -1,12 +1,34 @@
 package usb;
 
 import com.fazecast.jSerialComm.SerialPort;
+import common.LogstashLogger;
+import common.RedisPool;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ListPorts {
 
     public enum Device {
         furnace,
-        solar
+        solar;
+
+        /** Redis key with the system port name this device was last found on */
+        public String portKey() {
+            return "usb." + name();
+        }
     }
 
     public static void print() {
@@ -20,13 +42,106 @@ public class ListPorts {
     * Finds and returns a (closed) port for given Device.
     **/
     public static SerialPort findDevice(Device device) {
+        return findDevice(device, Collections.emptySet());
+    }
+
+    /**
+    * Finds and returns a (closed) port for given Device, leaving out the named ports, which are in use already.
+    **/
+    public static SerialPort findDevice(Device device, Set<String> inUse) {
+        return findDevices(EnumSet.of(device), inUse).get(device);
+    }
+
+    /**
+    * Finds (closed) ports for the given devices, devices that are not connected are left out of the result.
+    *
+    * The port each device was last found on is tried first. Only when that fails all remaining ports are peeked,
+    * concurrently, as each peek may take up to two seconds.
+    **/
+    public static Map<Device, SerialPort> findDevices(Set<Device> devices) {
+        return findDevices(devices, Collections.emptySet());
+    }
+
+    private static Map<Device, SerialPort> findDevices(Set<Device> devices, Set<String> inUse) {
+        long start = System.currentTimeMillis();
+        Map<Device, SerialPort> found = new EnumMap<>(Device.class);
+        List<SerialPort> candidates = new ArrayList<>();
         for (SerialPort port : SerialPort.getCommPorts()) {
-            if (openAndPeek(port) == device) {
-                return port;
+            // Peeking a port that is served would steal its lines, and close it
+            if (!inUse.contains(port.getSystemPortName())) {
+                candidates.add(port);
+            }
+        }
+
+        Map<Device, String> lastKnown = lastKnownPorts(devices);
+        for (String portName : lastKnown.values()) {
+            for (SerialPort port : candidates) {
+                if (port.getSystemPortName().equals(portName)) {
+                    addIfWanted(devices, found, port, openAndPeek(port));
+                    candidates.remove(port);
+                    break;
+                }
+            }
+        }
+
+        boolean fullScan = found.size() < devices.size() && !candidates.isEmpty();
+        if (fullScan) {
+            ExecutorService executor = Executors.newFixedThreadPool(candidates.size());
+            try {
+                Map<SerialPort, Future<Device>> peeks = new LinkedHashMap<>();
+                for (SerialPort port : candidates) {
+                    peeks.put(port, executor.submit(() -> openAndPeek(port)));
+                }
+                for (Map.Entry<SerialPort, Future<Device>> peek : peeks.entrySet()) {
+                    try {
+                        addIfWanted(devices, found, peek.getKey(), peek.getValue().get());
+                    } catch (InterruptedException | ExecutionException e) {
+                        LogstashLogger.INSTANCE.warn("Could not peek port " + peek.getKey().getSystemPortName(), e);
+                        peek.getKey().closePort();
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
             }
+        }
+
+        rememberPorts(found);
+        LogstashLogger.INSTANCE.info("Discovered " + found.keySet() + " of " + devices + " in "
+                + (System.currentTimeMillis() - start) + "ms" + (fullScan ? " with a full port scan" : " on the last known ports"));
+        return found;
+    }
+
+    private static void addIfWanted(Set<Device> devices, Map<Device, SerialPort> found, SerialPort port, Device device) {
+        if (device != null && devices.contains(device) && !found.containsKey(device)) {
+            found.put(device, port);
+        } else {
             port.closePort();
         }
-        return null;
+    }
+
+    private static Map<Device, String> lastKnownPorts(Set<Device> devices) {
+        Map<Device, String> ports = new EnumMap<>(Device.class);
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            for (Device device : devices) {
+                String portName = jedis.get(device.portKey());
+                if (portName != null) {
+                    ports.put(device, portName);
+                }
+            }
+        } catch (JedisException e) {
+            LogstashLogger.INSTANCE.warn("No last known usb ports available, scanning all", e);
+        }
+        return ports;
+    }
+
+    private static void rememberPorts(Map<Device, SerialPort> found) {
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            for (Map.Entry<Device, SerialPort> entry : found.entrySet()) {
+                jedis.set(entry.getKey().portKey(), entry.getValue().getSystemPortName());
+            }
+        } catch (JedisException e) {
+            LogstashLogger.INSTANCE.warn("Could not store the usb ports", e);
+        }
     }
 
     /**
@@ -0,0 +1,30 @@
+package usb;
+
+import com.fazecast.jSerialComm.SerialPort;
+import common.Frame;
+
+import java.io.IOException;
+
+/**
+ * Protocol of a micro controller connected via USB. The SerialHub finds the port, cuts the stream into lines and
+ * hands each line to the handler of the device on that port.
+ */
+public interface SerialHandler {
+
+    /** The device this handler talks to, it is looked up with ListPorts */
+    ListPorts.Device device();
+
+    /** Redis key that holds the runtime of the connection, it also prevents a second process from opening the port */
+    String startTimeKey();
+
+    /**
+     * Handles one line received from the device and writes the reply, if any, to the port.
+     * An IOException closes only the port of this device, the hub opens it again every REOPEN_INTERVAL_MS. Other
+     * exceptions are logged and cost only this line.
+     */
+    void respond(Frame lineIn, SerialPort port) throws IOException;
+
+    /** Called by the hub now and then to log (and reset) figures the handler keeps */
+    default void report() {
+    }
+}
@@ -0,0 +1,335 @@
+package usb;
+
+import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortDataListener;
+import com.fazecast.jSerialComm.SerialPortEvent;
+import common.Frame;
+import common.LatencyStats;
+import common.LogstashLogger;
+import common.RedisPool;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves all micro controllers connected via USB from a single thread.
+ *
+ * The jSerialComm event threads only signal that a port has data, like a selector. The hub loop takes the ready
+ * ports from a queue, reads them, and hands the complete lines to the SerialHandler of the device. When a device
+ * stays silent for longer than the TTL, or a write to it fails, only its port is closed and opened again; a port that
+ * does not open is retried every REOPEN_INTERVAL_MS. The other devices are served meanwhile.
+ *
+ * A device that was not found at the start, or that does not come back on its port after REOPEN_ATTEMPTS, may have
+ * been plugged in later or enumerated on another port (ttyUSB0 becoming ttyUSB1). Its port is looked up again every
+ * DISCOVER_INTERVAL_MS, on a thread of its own as peeking the ports takes seconds, leaving out the ports in use.
+ */
+public class SerialHub implements Runnable, Closeable {
+
+    private final static int TTL = 60;
+    private final static int FRAME_CAPACITY = 256;
+    private final static long REPORT_INTERVAL_MS = 10*60*1000;
+    private final static long REOPEN_INTERVAL_MS = 5000;
+    private final static int REOPEN_ATTEMPTS = 3;
+    private final static long DISCOVER_INTERVAL_MS = 60*1000;
+
+    private final long startTime;
+    private final Map<ListPorts.Device, SerialHandler> handlers = new EnumMap<>(ListPorts.Device.class);
+    private final List<Connection> connections = new ArrayList<>();
+    private final BlockingQueue<Connection> ready = new LinkedBlockingQueue<>();
+    private final byte[] readBuffer = new byte[64];
+    private final ExecutorService discovery = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "usb-discovery");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean stayOpen = true;
+
+    public SerialHub(SerialHandler... handlers) {
+        startTime = System.currentTimeMillis();
+        for (SerialHandler handler : handlers) {
+            this.handlers.put(handler.device(), handler);
+        }
+    }
+
+    private class Connection implements SerialPortDataListener {
+        final SerialHandler handler;
+        /** Null while the device is not found */
+        SerialPort port;
+        final LineFramer framer = new LineFramer(FRAME_CAPACITY);
+        final Frame lineIn = new Frame(FRAME_CAPACITY);
+        final AtomicBoolean queued = new AtomicBoolean(false);
+        final LatencyStats replyLatency;
+        volatile long dataArrival;
+        long lastConnection = System.currentTimeMillis();
+        boolean open = false;
+        long lastOpenAttempt;
+        /** Failed opens and timeouts since the last line, after REOPEN_ATTEMPTS the port is looked up again */
+        int failures = 0;
+        long lastDiscovery;
+        Future<SerialPort> discovering;
+
+        Connection(SerialHandler handler, SerialPort port) {
+            this.handler = handler;
+            this.port = port;
+            replyLatency = new LatencyStats(handler.device() + " serial reply");
+        }
+
+        boolean open() {
+            lastOpenAttempt = System.currentTimeMillis();
+            if (port == null) {
+                return false;
+            }
+            if (!port.openPort()) {
+                failures++;
+                LogstashLogger.INSTANCE.error("Could not open " + port.getSystemPortName() + " of the "
+                        + handler.device() + " controller, retrying");
+                return false;
+            }
+            port.addDataListener(this);
+            // A partial line from before is of no use anymore
+            framer.clear();
+            lastConnection = System.currentTimeMillis();
+            open = true;
+            return true;
+        }
+
+        void close() {
+            open = false;
+            if (port != null && port.isOpen()) {
+                port.removeDataListener();
+                port.closePort();
+            }
+        }
+
+        @Override
+        public int getListeningEvents() {
+            return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+        }
+
+        @Override
+        public void serialEvent(SerialPortEvent event) {
+            dataArrival = System.nanoTime();
+            if (queued.compareAndSet(false, true)) {
+                ready.offer(this);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!isSingle()) {
+            return;
+        }
+        Map<ListPorts.Device, SerialPort> ports = ListPorts.findDevices(handlers.keySet());
+        if (ports.isEmpty()) {
+            LogstashLogger.INSTANCE.error("Could not find USB port for " + handlers.keySet() + ", exiting");
+            close();
+            return;
+        }
+        for (ListPorts.Device device : handlers.keySet()) {
+            Connection connection = new Connection(handlers.get(device), ports.get(device));
+            if (connection.port == null) {
+                LogstashLogger.INSTANCE.error("Could not find USB port for " + device + ", looking again every "
+                        + DISCOVER_INTERVAL_MS/1000 + "s");
+                connection.lastDiscovery = System.currentTimeMillis();
+                release(connection.handler);
+            }
+            connection.open();
+            connections.add(connection);
+        }
+        LogstashLogger.INSTANCE.info("Starting SerialHub for " + ports.keySet());
+
+        long lastReport = System.currentTimeMillis();
+        try {
+            while (stayOpen) {
+                try {
+                    Connection connection = ready.poll(1, TimeUnit.SECONDS);
+                    if (connection != null) {
+                        connection.queued.set(false);
+                        listen(connection);
+                    }
+                } catch (InterruptedException e) {
+                    stayOpen = false;
+                }
+
+                for (Connection connection : connections) {
+                    if (connection.open && System.currentTimeMillis() - connection.lastConnection > TTL*1000) {
+                        LogstashLogger.INSTANCE.error("Reopening " + connection.handler.device()
+                                + " controller usb connection after timeout of inactivity.");
+                        System.out.println("Perhaps lost the " + connection.handler.device() + " serial connection, reopening");
+                        connection.close();
+                        connection.failures++;
+                        reopen(connection);
+                    } else if (!connection.open
+                            && System.currentTimeMillis() - connection.lastOpenAttempt > REOPEN_INTERVAL_MS) {
+                        reopen(connection);
+                    }
+                }
+                if (System.currentTimeMillis() - lastReport > REPORT_INTERVAL_MS) {
+                    for (Connection connection : connections) {
+                        LogstashLogger.INSTANCE.info(connection.replyLatency.toString());
+                        connection.replyLatency.reset();
+                        connection.handler.report();
+                    }
+                    LogstashLogger.INSTANCE.info(RedisPool.INSTANCE.metrics());
+                    RedisPool.INSTANCE.resetMetrics();
+                    lastReport = System.currentTimeMillis();
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /** Opens the port again, or first looks it up when the device is missing or does not come back on it */
+    private void reopen(Connection connection) {
+        if (connection.discovering != null) {
+            if (!connection.discovering.isDone()) {
+                return;
+            }
+            try {
+                SerialPort port = connection.discovering.get();
+                if (port != null) {
+                    LogstashLogger.INSTANCE.info("Found the " + connection.handler.device() + " controller on "
+                            + port.getSystemPortName());
+                    connection.port = port;
+                    connection.failures = 0;
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                LogstashLogger.INSTANCE.warn("Could not look up the " + connection.handler.device() + " port", e);
+            }
+            connection.discovering = null;
+        } else if ((connection.port == null || connection.failures >= REOPEN_ATTEMPTS)
+                && System.currentTimeMillis() - connection.lastDiscovery > DISCOVER_INTERVAL_MS
+                && !isServedElsewhere(connection.handler)) {
+            connection.lastDiscovery = System.currentTimeMillis();
+            ListPorts.Device device = connection.handler.device();
+            Set<String> inUse = new HashSet<>();
+            for (Connection other : connections) {
+                if (other.open) {
+                    inUse.add(other.port.getSystemPortName());
+                }
+            }
+            connection.discovering = discovery.submit(() -> ListPorts.findDevice(device, inUse));
+            return;
+        }
+        connection.open();
+    }
+
+    private void listen(Connection connection) {
+        int available;
+        while (stayOpen && connection.open && (available = connection.port.bytesAvailable()) > 0) {
+            int read = connection.port.readBytes(readBuffer, Math.min(available, readBuffer.length));
+            if (read <= 0) {
+                break;
+            }
+            int fed = 0;
+            while (fed < read && connection.open) {
+                fed += connection.framer.feed(readBuffer, fed, read - fed);
+                while (connection.framer.next(connection.lineIn)) {
+                    respond(connection);
+                }
+            }
+        }
+    }
+
+    /** A failing handler, for example when Redis is down, only costs the line of its own device */
+    private void respond(Connection connection) {
+        try {
+            connection.handler.respond(connection.lineIn, connection.port);
+            connection.replyLatency.since(connection.dataArrival);
+        } catch (IOException e) {
+            LogstashLogger.INSTANCE.error("Writing to " + connection.handler.device() + " controller, reopening", e);
+            connection.close();
+            return;
+        } catch (RuntimeException e) {
+            LogstashLogger.INSTANCE.error("Handling a line of the " + connection.handler.device() + " controller", e);
+        }
+        // The controller is alive, whether or not its line could be handled
+        connection.lastConnection = System.currentTimeMillis();
+        connection.failures = 0;
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            jedis.setex(connection.handler.startTimeKey(), TTL
+                    , String.valueOf((int)((System.currentTimeMillis() - startTime)/1000)));
+        } catch (JedisException e) {
+            LogstashLogger.INSTANCE.error("Could not store the start time of the " + connection.handler.device()
+                    + " controller", e);
+        }
+    }
+
+    /**
+     * This should be called when you stop using the ports.
+     * This will prevent port locking on platforms like Linux.
+     */
+    @Override
+    public void close() {
+        stayOpen = false;
+        discovery.shutdownNow();
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            for (Connection connection : connections) {
+                // The key of a device that was never found may be held by a process that found it
+                if (connection.port != null) {
+                    jedis.del(connection.handler.startTimeKey());
+                }
+            }
+        } catch (JedisException e) {
+            LogstashLogger.INSTANCE.warn("Could not release the start time keys, they expire in " + TTL + "s", e);
+        }
+    }
+
+    /** Claims the start time keys, false when another hub still holds one of them */
+    private boolean isSingle() {
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            for (SerialHandler handler : handlers.values()) {
+                if (jedis.exists(handler.startTimeKey())) {
+                    return false;
+                }
+            }
+            for (SerialHandler handler : handlers.values()) {
+                jedis.setex(handler.startTimeKey(), TTL, "0");
+            }
+            return true;
+        }
+    }
+
+    /** Gives up the start time key of a device that was not found, so it does not block a process that finds it */
+    private void release(SerialHandler handler) {
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            jedis.del(handler.startTimeKey());
+        } catch (JedisException e) {
+            LogstashLogger.INSTANCE.warn("Could not release the start time key of the " + handler.device(), e);
+        }
+    }
+
+    /**
+     * True when the start time key of a device that is not served here is alive, another process serves it. The key
+     * of a device this hub lost expires within the TTL, until then it is not looked up.
+     */
+    private boolean isServedElsewhere(SerialHandler handler) {
+        try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
+            return jedis.exists(handler.startTimeKey());
+        } catch (JedisException e) {
+            LogstashLogger.INSTANCE.warn("Could not check the start time key of the " + handler.device(), e);
+            return false;
+        }
+    }
+}
@@ -1,15 +1,31 @@
 package valve;
 
-import com.pi4j.io.i2c.I2CDevice;
+import i2c.Bus;
 import i2c.I2CMaster;
 import i2c.I2CUtil;
 import org.apache.http.client.fluent.Request;
 import org.apache.http.entity.ContentType;
+import common.BinaryFrame;
+import common.Frame;
 import common.LogstashLogger;
+import common.RedisPool;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import redis.clients.jedis.Jedis;
 
@@ -22,46 +38,169 @@ public class I2CValveMaster implements I2CMaster {
     private final int monitorPort;
 
     private final int TTL = 60;
+    private final static int MONITOR_TIMEOUT_MS = 10000;
+    private final static int MONITOR_THREADS = 4;
+
+    /**
+     * The monitor requests of all instances, on daemon threads. The fluent http client keeps the connections to the
+     * monitor alive between the requests. When all threads are busy and the queue is full, as when the monitor is
+     * down, a request is rejected rather than run on the i2c bus thread: a directive is then missing and a status is
+     * dropped.
+     */
+    private final static ExecutorService MONITOR = new ThreadPoolExecutor(MONITOR_THREADS, MONITOR_THREADS
+            , 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(64), runnable -> {
+                Thread thread = new Thread(runnable, "valve-monitor");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.AbortPolicy());
 
     public I2CValveMaster(String monitorIp, int monitorPort) {
         this.monitorIp = monitorIp;
         this.monitorPort = monitorPort;
     }
 
-    final Map<String, I2CDevice> devices = new HashMap<>();
+    final Map<String, Bus.Device> devices = new HashMap<>();
+
+    public Map<String, Bus.Device> devices() {return devices;}
+
+    /** The valve groups that advertised a BinaryFrame version in their hello */
+    final Set<String> binaryDevices = new HashSet<>();
+
+    public Set<String> binaryDevices() {return binaryDevices;}
+
+    /** The i2c bus is used by one thread, so one request and one response buffer serve all valve groups */
+    private final byte[] slaveRequest = new byte[I2CUtil.RESPONSE_SIZE];
+    private int sequence = 0;
+    private final Frame slaveResponse = I2CUtil.responseFrame();
+    private final BinaryFrame binaryResponse = new BinaryFrame();
+
+    /**
+     * Starts fetching the directives of the given valve groups from the monitor, all at once, so the round trips
+     * overlap each other and the i2c transfers. Pass each to directive() and then to transfer().
+     */
+    public Map<String, Future<String>> directives(Collection<String> deviceIds) {
+        Map<String, Future<String>> directives = new LinkedHashMap<>();
+        for (String deviceId : deviceIds) {
+            directives.put(deviceId, fetch(deviceId));
+        }
+        return directives;
+    }
+
+    /** A rejected fetch fails like a fetch the monitor did not answer */
+    private Future<String> fetch(String deviceId) {
+        try {
+            return MONITOR.submit(() -> directive(deviceId));
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<String> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
 
-    public Map<String, I2CDevice> devices() {return devices;}
+    /**
+     * Waits for a directive fetched by directives().
+     * @return null when the monitor failed or did not answer in time, that is no fault of the valve group
+     */
+    public String directive(String deviceId, Future<String> directive) {
+        try {
+            return directive.get(MONITOR_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            directive.cancel(true);
+            LogstashLogger.INSTANCE.warn("No directive from the monitor for valve group " + deviceId + ", "
+                    + (e.getCause() != null ? e.getCause() : e));
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
 
+    /** Fetches the directive and passes it on, false when either the monitor or the valve group failed */
     public boolean request(String deviceId) {
-        String slaveResponse;
+        String directive = directive(deviceId, fetch(deviceId));
+        return directive != null && transfer(deviceId, directive);
+    }
+
+    /**
+     * Passes a directive on to the valve group and its status back to the monitor, in the background so the i2c
+     * transfers are not held up by the monitor round trip. A directive that does not fit in a binary frame is sent
+     * as text, rather than cut off.
+     * @return false when the i2c transfer failed, it may be retried with the same directive
+     */
+    public boolean transfer(String deviceId, String monitorResponse) {
+        byte[] text = monitorResponse.trim().getBytes();
+        boolean binary = binaryDevices.contains(deviceId);
+        if (binary && text.length > BinaryFrame.MAX_PAYLOAD) {
+            LogstashLogger.INSTANCE.warn("Directive of " + text.length + " bytes for valve group " + deviceId
+                    + " exceeds a binary frame, sending it as text");
+            binary = false;
+        }
         try {
-            String monitorRequest = "http://" + monitorIp + ":" + monitorPort + "/valvegroup/";
-            String monitorResponse = Request.Post(monitorRequest)
-                    .bodyString(deviceId + ":", ContentType.DEFAULT_TEXT).execute().returnContent().asString();
-            devices.get(deviceId).write(monitorResponse.trim().getBytes());
-            slaveResponse = I2CUtil.byteToString(devices.get(deviceId));
+            Bus.Device device = devices.get(deviceId);
+            if (binary) {
+                sequence = (sequence + 1) & 0xFF;
+                device.write(slaveRequest, 0, BinaryFrame.write(slaveRequest, BinaryFrame.TYPE_VALVE_DIRECTIVE
+                        , sequence, text, text.length));
+            } else {
+                device.write(text);
+            }
+            I2CUtil.read(device, slaveResponse, binary);
             LogstashLogger.INSTANCE.info("Requested valve slave from monitor directive " + monitorResponse +
                     " which after passing on to the slave resulted in the following response: " + slaveResponse);
         } catch (IOException e) {
-            LogstashLogger.INSTANCE.warn("Rescanning bus after communication error for " + deviceId);
+            LogstashLogger.INSTANCE.warn("Communication error for " + deviceId);
             return false;
         }
-        if (slaveResponse.contains("]")) {
+        String status;
+        if (binary) {
+            if (!binaryResponse.read(slaveResponse.buffer(), 0, slaveResponse.length())
+                    || binaryResponse.type() != BinaryFrame.TYPE_VALVE_STATUS
+                    || binaryResponse.sequence() != sequence) {
+                // Corrupt, or the answer to another request
+                LogstashLogger.INSTANCE.warn("Invalid frame from valve group " + deviceId + ", "
+                        + (binaryResponse.error() != null ? binaryResponse.error() : binaryResponse.toString()));
+                return false;
+            }
+            status = binaryResponse.payloadString(0);
+        } else {
+            int end = slaveResponse.indexOf(']');
+            status = end >= 0 ? slaveResponse.substring(0, end + 1) : null;
+        }
+        if (status != null) {
             //Send response from valvegroup back to monitor for logging
-            String response = deviceId + ":" + slaveResponse.substring(0, slaveResponse.indexOf("]") + 1);
-            try (Jedis jedis = new Jedis("localhost")) {
+            String response = deviceId + ":" + status;
+            try (Jedis jedis = RedisPool.INSTANCE.getResource()) {
                 jedis.setex("lastValveResponse", TTL, response);
             } catch (Exception e) {
             }
             try {
-                Request.Post("http://" + monitorIp + ":" + monitorPort + "/valvegroup/")
-                        .bodyString(response, ContentType.DEFAULT_TEXT).execute().returnContent().asString();
-            } catch (IOException e) {
-                LogstashLogger.INSTANCE.error("Failed to post valvegroup status for " + deviceId);
+                MONITOR.execute(() -> postStatus(deviceId, response));
+            } catch (RejectedExecutionException e) {
+                LogstashLogger.INSTANCE.warn("Monitor busy, dropped the status of valve group " + deviceId);
             }
         } else {
             LogstashLogger.INSTANCE.error("Received garbage from the ValveGroup micro controller: " + slaveResponse);
         }
         return true;
     }
+
+    private String directive(String deviceId) throws IOException {
+        return Request.Post(monitorUrl())
+                .connectTimeout(MONITOR_TIMEOUT_MS).socketTimeout(MONITOR_TIMEOUT_MS)
+                .bodyString(deviceId + ":", ContentType.DEFAULT_TEXT).execute().returnContent().asString();
+    }
+
+    private void postStatus(String deviceId, String response) {
+        try {
+            Request.Post(monitorUrl())
+                    .connectTimeout(MONITOR_TIMEOUT_MS).socketTimeout(MONITOR_TIMEOUT_MS)
+                    .bodyString(response, ContentType.DEFAULT_TEXT).execute().returnContent().asString();
+        } catch (IOException e) {
+            LogstashLogger.INSTANCE.error("Failed to post valvegroup status for " + deviceId);
+        }
+    }
+
+    private String monitorUrl() {
+        return "http://" + monitorIp + ":" + monitorPort + "/valvegroup/";
+    }
 }
@@ -0,0 +1,79 @@
+package common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryFrameTest {
+
+    @Test
+    public void writeAndRead() {
+        byte[] payload = {1, 0x18, (byte)0x9C, (byte)0x80, 0x00, 7};
+        byte[] data = new byte[BinaryFrame.HEADER_SIZE + payload.length + 1];
+        int length = BinaryFrame.write(data, BinaryFrame.TYPE_FURNACE_STATE, 42, payload, payload.length);
+        BinaryFrame frame = new BinaryFrame();
+        assertTrue(frame.read(data, 0, length));
+        assertEquals(BinaryFrame.TYPE_FURNACE_STATE, frame.type());
+        assertEquals(42, frame.sequence());
+        assertTrue(frame.flag(0, 0));
+        assertEquals(63.0, frame.temperature(1), 1e-9);
+        assertTrue(Double.isNaN(frame.temperature(3)));
+        assertEquals(7, frame.uint8(5));
+    }
+
+    @Test
+    public void corruptFramesAreRejected() {
+        byte[] data = new byte[8];
+        int length = BinaryFrame.writeFlags(data, BinaryFrame.TYPE_FURNACE_REQUEST, 1, true, false);
+        BinaryFrame frame = new BinaryFrame();
+        data[4] ^= 0x02;
+        assertFalse(frame.read(data, 0, length));
+        assertEquals("CRC mismatch", frame.error());
+        assertFalse(frame.read(data, 0, 3));
+        data[3] = 20;
+        assertFalse(frame.read(data, 0, length));
+    }
+
+    @Test
+    public void onlyTheVersionByteStartsAFrame() {
+        assertTrue(BinaryFrame.isBinary((byte)0x81));
+        assertFalse(BinaryFrame.isBinary((byte)0xFF));
+        assertFalse(BinaryFrame.isBinary((byte)0x80));
+        assertFalse(BinaryFrame.isBinary((byte)'H'));
+    }
+
+    @Test
+    public void paddingIsNotAFrame() {
+        byte[] padding = new byte[32];
+        Arrays.fill(padding, (byte)0xFF);
+        assertFalse(new BinaryFrame().read(padding, 0, padding.length));
+    }
+
+    @Test
+    public void escapedSerialLine() {
+        byte[] data = {(byte)0x81, 1, 0x1B, 0x2A, 0x1B, 0x2D, 0x1B, 0x3B};
+        assertEquals(5, BinaryFrame.unescape(data, 0, data.length));
+        assertEquals(0x0A, data[2]);
+        assertEquals(0x0D, data[3]);
+        assertEquals(0x1B, data[4]);
+    }
+
+    @Test
+    public void advertisedVersion() {
+        assertEquals(1, BinaryFrame.advertised("H:boiler120:B1"));
+        assertEquals(1, BinaryFrame.advertised("V3]:B7"));
+        assertEquals(0, BinaryFrame.advertised("H:boiler120"));
+        assertEquals(0, BinaryFrame.advertised("H:boiler120:Bx"));
+    }
+
+    @Test
+    public void missedSequences() {
+        assertEquals(0, BinaryFrame.missed(-1, 5));
+        assertEquals(0, BinaryFrame.missed(5, 6));
+        assertEquals(2, BinaryFrame.missed(254, 1));
+    }
+}
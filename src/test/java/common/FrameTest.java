@@ -0,0 +1,77 @@
+package common;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameTest {
+
+    private static Frame frame(String line) {
+        Frame frame = new Frame(64);
+        byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, frame.buffer(), 0, bytes.length);
+        frame.setLength(bytes.length);
+        return frame;
+    }
+
+    @Test
+    public void solarLine() {
+        Frame frame = frame("20.06:17.87:16.31:14.00:15.69:T:F:T");
+        assertEquals(8, frame.fieldCount());
+        assertEquals(20.06, frame.doubleField(0), 1e-9);
+        assertEquals(15.69, frame.doubleField(4), 1e-9);
+        assertTrue(frame.flagField(5));
+        assertFalse(frame.flagField(6));
+        assertTrue(frame.flagField(7));
+        assertFalse(frame.flagField(8));
+    }
+
+    @Test
+    public void numbers() {
+        Frame frame = frame("-12.50: +3 :nan::1.2.3:63");
+        assertEquals(-12.5, frame.doubleField(0), 1e-9);
+        assertEquals(3.0, frame.doubleField(1), 1e-9);
+        assertTrue(Double.isNaN(frame.doubleField(2)));
+        assertTrue(Double.isNaN(frame.doubleField(3)));
+        assertTrue(Double.isNaN(frame.doubleField(4)));
+        assertEquals(63, frame.intField(5));
+        assertEquals(-1, frame.intField(2));
+        assertTrue(Double.isNaN(frame.doubleField(6)));
+    }
+
+    @Test
+    public void fieldsAreTrimmed() {
+        Frame frame = frame("furnace: 1 :63.5\r");
+        assertTrue(frame.startsWith("furnace:"));
+        assertTrue(frame.fieldEquals(1, "1"));
+        assertEquals(63.5, frame.doubleField(2), 1e-9);
+        assertEquals(" 1 ", frame.field(1));
+    }
+
+    @Test
+    public void fieldsBeyondSixteenAreCountedOnly() {
+        Frame frame = frame("0:1:2:3:4:5:6:7:8:9:10:11:12:13:14:15:16:17");
+        assertEquals(18, frame.fieldCount());
+        assertEquals(15, frame.intField(15));
+        assertEquals(-1, frame.intField(16));
+        assertEquals("", frame.field(17));
+    }
+
+    @Test
+    public void reuse() {
+        Frame frame = frame("a:b:c");
+        frame.setLength(0);
+        assertTrue(frame.isEmpty());
+        assertEquals(0, frame.fieldCount());
+        frame.buffer()[0] = 'x';
+        frame.setLength(1);
+        assertEquals("x", frame.toString());
+        assertEquals(1, frame.fieldCount());
+        assertEquals("", frame.substring(2));
+        assertEquals(-1, frame.indexOf(':'));
+    }
+}
@@ -0,0 +1,38 @@
+package i2c;
+
+import common.Frame;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class I2CUtilTest {
+    private final SimulatedBus bus = new SimulatedBus(1);
+    private final Frame response = I2CUtil.responseFrame();
+
+    @Test
+    public void paddingIsStripped() throws IOException {
+        bus.add(8, SimulatedBus.valveGroup("1", false));
+        Bus.Device device = bus.device(8);
+        device.write(new byte[]{'H'});
+        assertEquals("V1]", I2CUtil.read(device, response).toString());
+    }
+
+    @Test
+    public void emptyReplyOfPaddingIsEmpty() throws IOException {
+        bus.add(8, (request, length) -> new byte[0]);
+        Bus.Device device = bus.device(8);
+        device.write(new byte[]{'H'});
+        assertTrue(I2CUtil.read(device, response).isEmpty());
+    }
+
+    @Test
+    public void binaryIsLeftAsItIs() throws IOException {
+        bus.add(8, (request, length) -> new byte[]{(byte)0x81, 3, 1, 0, 0});
+        Bus.Device device = bus.device(8);
+        device.write(new byte[]{'x'});
+        assertEquals(I2CUtil.RESPONSE_SIZE, I2CUtil.read(device, response, true).length());
+    }
+}
@@ -0,0 +1,122 @@
+package solar;
+
+import org.apache.commons.math3.stat.regression.SimpleRegression;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SlopeWindowTest {
+    /** Hours since the epoch around 2020, so the times are as large as the real ones */
+    private final static double START_HR = 1_600_000_000_000.0/(60*60*1000);
+    private final static double RELATIVE_ERROR = 1e-6;
+
+    /** Feeds both the window and the same samples to SimpleRegression, evicting like the window does */
+    private static class Reference {
+        private final SlopeWindow window;
+        private final double windowHr;
+        private final int capacity;
+        private final Deque<double[]> samples = new ArrayDeque<>();
+        private final Random random = new Random(42);
+
+        Reference(double windowHr, int capacity) {
+            this.window = new SlopeWindow(windowHr, capacity);
+            this.windowHr = windowHr;
+            this.capacity = capacity;
+        }
+
+        /** A warming pipe with some noise on the sensor */
+        void add(double timeHr) {
+            double value = 20.0 + 3.0*(timeHr - START_HR) + random.nextGaussian()*0.1;
+            while (!samples.isEmpty() && samples.peekFirst()[0] < timeHr - windowHr) {
+                samples.removeFirst();
+            }
+            if (samples.size() == capacity) {
+                samples.removeFirst();
+            }
+            samples.addLast(new double[]{timeHr, value});
+            window.add(timeHr, value);
+        }
+
+        void reset() {
+            samples.clear();
+            window.reset();
+        }
+
+        void assertEqual() {
+            SimpleRegression regression = new SimpleRegression();
+            for (double[] sample : samples) {
+                regression.addData(sample[0], sample[1]);
+            }
+            assertEquals(regression.getN(), window.count());
+            assertClose(regression.getSlope(), window.slope());
+            assertClose(regression.getSlopeStdErr(), window.slopeStdErr());
+        }
+    }
+
+    private static void assertClose(double expected, double actual) {
+        if (Double.isNaN(expected)) {
+            assertTrue("expected NaN instead of " + actual, Double.isNaN(actual));
+        } else {
+            assertEquals(expected, actual, Math.abs(expected)*RELATIVE_ERROR);
+        }
+    }
+
+    @Test
+    public void fewSamples() {
+        Reference reference = new Reference(1.0, 100);
+        reference.assertEqual();
+        reference.add(START_HR);
+        reference.assertEqual();
+        reference.add(START_HR + 0.01);
+        reference.assertEqual();
+        reference.add(START_HR + 0.02);
+        reference.assertEqual();
+    }
+
+    @Test
+    public void evictsSamplesOlderThanTheWindow() {
+        Reference reference = new Reference(1.0, 1000);
+        for (int i = 0; i < 3*120; i++) {
+            reference.add(START_HR + i/120.0);
+            reference.assertEqual();
+        }
+    }
+
+    @Test
+    public void evictsSamplesBeyondTheCapacity() {
+        Reference reference = new Reference(1.0, 20);
+        for (int i = 0; i < 200; i++) {
+            reference.add(START_HR + i/120.0);
+            reference.assertEqual();
+        }
+    }
+
+    @Test
+    public void rebasesOnALongRun() {
+        // The origin moves after 24 windows, so 6 hours of a window of 0.1 hour rebases twice
+        Reference reference = new Reference(0.1, 100);
+        for (int i = 0; i < 6*360; i++) {
+            reference.add(START_HR + i/360.0);
+            reference.assertEqual();
+        }
+    }
+
+    @Test
+    public void startsOverAfterAReset() {
+        Reference reference = new Reference(1.0, 1000);
+        for (int i = 0; i < 60; i++) {
+            reference.add(START_HR + i/120.0);
+        }
+        reference.reset();
+        reference.assertEqual();
+        for (int i = 0; i < 60; i++) {
+            reference.add(START_HR + 10.0 + i/120.0);
+            reference.assertEqual();
+        }
+    }
+}
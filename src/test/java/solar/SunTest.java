@@ -0,0 +1,83 @@
+package solar;
+
+import net.e175.klaus.solarpositioning.AzimuthZenithAngle;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SunTest {
+    /** Error bound in degrees of the interpolated positions, the shining thresholds are whole tenths */
+    private final static double MAX_ERROR = 0.01;
+
+    private final Sun sun = new Sun(50.803, 4.353, 100);
+
+    private static long time(int year, int month, int day, int hour, int minute, int second) {
+        Calendar calendar = new GregorianCalendar(year, month, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+
+    private static void assertClose(AzimuthZenithAngle expected, AzimuthZenithAngle actual) {
+        double azimuthError = Math.abs(expected.getAzimuth() - actual.getAzimuth());
+        assertTrue("azimuth " + actual.getAzimuth() + " instead of " + expected.getAzimuth()
+                , Math.min(azimuthError, 360.0 - azimuthError) < MAX_ERROR);
+        assertEquals(expected.getZenithAngle(), actual.getZenithAngle(), MAX_ERROR);
+    }
+
+    /** Every 7 minutes and 13 seconds of the day, so the samples fall all over the table steps */
+    private void assertDay(Sun sun, int year, int month, int day) {
+        long start = time(year, month, day, 0, 0, 0);
+        long end = time(year, month, day + 1, 0, 0, 0);
+        for (long time = start; time < end; time += 7*60*1000 + 13*1000) {
+            AzimuthZenithAngle spa = sun.spaPosition(time);
+            // Below the horizon SPA switches its refraction correction off, which does not interpolate
+            if (spa.getZenithAngle() < 90.0) {
+                assertClose(spa, sun.position(time));
+            }
+        }
+    }
+
+    @Test
+    public void solsticesAndEquinoxes() {
+        assertDay(sun, 2020, Calendar.MARCH, 20);
+        assertDay(sun, 2020, Calendar.JUNE, 21);
+        assertDay(sun, 2020, Calendar.SEPTEMBER, 22);
+        assertDay(sun, 2020, Calendar.DECEMBER, 21);
+    }
+
+    @Test
+    public void daylightSavingTimeChanges() {
+        // 23 and 25 hour days in time zones with daylight saving time
+        assertDay(sun, 2020, Calendar.MARCH, 29);
+        assertDay(sun, 2020, Calendar.OCTOBER, 25);
+    }
+
+    @Test
+    public void lastMinuteOfTheDay() {
+        long time = time(2020, Calendar.JUNE, 21, 23, 59, 59);
+        assertEquals(sun.spaPosition(time).getAzimuth(), sun.position(time).getAzimuth(), MAX_ERROR);
+    }
+
+    @Test
+    public void locationsDoNotShareATable() {
+        Sun elsewhere = new Sun(-33.9, 18.4, 10);
+        long time = time(2020, Calendar.JUNE, 21, 12, 0, 0);
+        for (int i = 0; i < 3; i++) {
+            assertClose(sun.spaPosition(time), sun.position(time));
+            assertClose(elsewhere.spaPosition(time), elsewhere.position(time));
+        }
+    }
+
+    @Test
+    public void daysAlternatingInAReplay() {
+        long summer = time(2020, Calendar.JUNE, 21, 14, 30, 0);
+        long winter = time(2020, Calendar.DECEMBER, 21, 12, 30, 0);
+        for (int i = 0; i < 3; i++) {
+            assertClose(sun.spaPosition(summer), sun.position(summer));
+            assertClose(sun.spaPosition(winter), sun.position(winter));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package usb;
+
+import common.Frame;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LineFramerTest {
+    private final Frame frame = new Frame(64);
+
+    private static int feed(LineFramer framer, String bytes) {
+        byte[] data = bytes.getBytes(StandardCharsets.US_ASCII);
+        return framer.feed(data, 0, data.length);
+    }
+
+    private List<String> drain(LineFramer framer) {
+        List<String> lines = new ArrayList<>();
+        while (framer.next(frame)) {
+            lines.add(frame.toString());
+        }
+        return lines;
+    }
+
+    @Test
+    public void partialLineWaitsForItsEnd() {
+        LineFramer framer = new LineFramer(64);
+        feed(framer, "20.06:17.");
+        assertFalse(framer.next(frame));
+        feed(framer, "87:16.31");
+        assertFalse(framer.next(frame));
+        feed(framer, "\r\n");
+        assertTrue(framer.next(frame));
+        assertEquals("20.06:17.87:16.31", frame.toString());
+        assertFalse(framer.next(frame));
+    }
+
+    @Test
+    public void severalLinesInOneRead() {
+        LineFramer framer = new LineFramer(64);
+        assertEquals(24, feed(framer, "a:1\r\nb:2\r\nc:3\r\nd:4\r\npart"));
+        assertEquals(Arrays.asList("a:1", "b:2", "c:3", "d:4"), drain(framer));
+        feed(framer, "ial\r\n");
+        assertEquals(Arrays.asList("partial"), drain(framer));
+    }
+
+    @Test
+    public void crAndLfInSeparateReads() {
+        LineFramer framer = new LineFramer(64);
+        feed(framer, "furnace:1:63.5\r");
+        assertFalse(framer.next(frame));
+        feed(framer, "\n");
+        assertTrue(framer.next(frame));
+        assertEquals("furnace:1:63.5", frame.toString());
+    }
+
+    @Test
+    public void bareLfEndsALineAndEmptyLinesAreSkipped() {
+        LineFramer framer = new LineFramer(64);
+        feed(framer, "\r\n\r\nx\n\ny\r\n");
+        assertEquals(Arrays.asList("x", "y"), drain(framer));
+    }
+
+    @Test
+    public void byteAtATime() {
+        LineFramer framer = new LineFramer(16);
+        List<String> lines = new ArrayList<>();
+        for (int round = 0; round < 10; round++) {
+            for (byte b : ("line" + round + "\r\n").getBytes(StandardCharsets.US_ASCII)) {
+                assertEquals(1, framer.feed(new byte[]{b}, 0, 1));
+                lines.addAll(drain(framer));
+            }
+        }
+        // The 16 byte ring has wrapped around several times
+        assertEquals(10, lines.size());
+        assertEquals("line9", lines.get(9));
+    }
+
+    @Test
+    public void fullBufferOfCompleteLinesTakesTheRestLater() {
+        LineFramer framer = new LineFramer(8);
+        byte[] data = "abc\r\ndef\r\ngh\r\n".getBytes(StandardCharsets.US_ASCII);
+        int taken = framer.feed(data, 0, data.length);
+        assertTrue(taken < data.length);
+        List<String> lines = new ArrayList<>(drain(framer));
+        while (taken < data.length) {
+            taken += framer.feed(data, taken, data.length - taken);
+            lines.addAll(drain(framer));
+        }
+        assertEquals(Arrays.asList("abc", "def", "gh"), lines);
+        assertEquals(0, framer.droppedLines());
+    }
+
+    @Test
+    public void overflowDropsTheLineUpToItsEnd() {
+        LineFramer framer = new LineFramer(8);
+        feed(framer, "0123456789");
+        feed(framer, "abcdef\r\nok:1\r\n");
+        assertEquals(Arrays.asList("ok:1"), drain(framer));
+        assertEquals(1, framer.droppedLines());
+    }
+
+    @Test
+    public void overflowEndingExactlyAtTheLineEnd() {
+        LineFramer framer = new LineFramer(4);
+        feed(framer, "1234\nok\n");
+        assertEquals(Arrays.asList("ok"), drain(framer));
+        assertEquals(1, framer.droppedLines());
+    }
+
+    @Test
+    public void lineLongerThanTheFrameIsCut() {
+        LineFramer framer = new LineFramer(64);
+        Frame small = new Frame(4);
+        feed(framer, "abcdefgh\r\nij\r\n");
+        assertTrue(framer.next(small));
+        assertEquals("abcd", small.toString());
+        assertTrue(framer.next(small));
+        assertEquals("ij", small.toString());
+    }
+
+    @Test
+    public void clearForgetsAPartialLine() {
+        LineFramer framer = new LineFramer(64);
+        feed(framer, "20.06:17");
+        framer.clear();
+        feed(framer, "1:63.5\r\n");
+        assertEquals(Arrays.asList("1:63.5"), drain(framer));
+    }
+}